@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpServer;
+
+import mathservice.MathServiceServer;
+
+/**
+ * Load generator replaying a trace of requests against the MathService with
+ * a fixed number of concurrent clients, each sending its next request as soon
+ * as the previous one is answered. For every number of clients it reports the
+ * throughput, the latency percentiles and the error rate.
+ *
+ * Without -url the service is started in-process on the standalone server
+ * (MathServiceServer) with the data of -data; with -url any running
+ * deployment is tested, e.g. the docker-compose stack behind nginx at
+ * http://localhost:8080/MathService/. The trace is read from an access log
+ * (-log) or synthesised, see Traces.
+ *
+ * Usage: java -cp target/benchmarks.jar org.mathmap.benchmarks.LoadTest [options]
+ */
+public class LoadTest {
+	private static final String USAGE = "Usage: LoadTest [-url BaseURL | -data DataDir] [-log AccessLog]\n"
+			+ "    [-threads 1,4,16,64] [-warmup Seconds] [-duration Seconds]\n"
+			+ "    [-requests TraceSize] [-search Ratio] [-spread Spread] [-seed Seed]";
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+	/**
+	 * Outcome of one client, or of all clients once merged.
+	 */
+	static class Result {
+		long[] latencies = new long[1024];
+		int count;
+		long errors;
+
+		void record(long nanos) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, 2 * count);
+			}
+			latencies[count++] = nanos;
+		}
+
+		void add(Result other) {
+			for (int i = 0; i < other.count; i++) {
+				record(other.latencies[i]);
+			}
+			errors += other.errors;
+		}
+
+		/**
+		 * @return latency of quantile q in milliseconds, requires sorted latencies
+		 */
+		double getQuantile(double q) {
+			if (count == 0) {
+				return Double.NaN;
+			}
+			return latencies[Math.min(count - 1, (int) (q * count))] / 1e6;
+		}
+	}
+
+	/**
+	 * Sends a request and reads the whole answer, so the connection is kept
+	 * alive for the next request.
+	 * @return true if the request was answered without error
+	 */
+	static boolean send(URL url, byte[] buffer) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			int status = connection.getResponseCode();
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				while (in.read(buffer) >= 0) {
+					/** discard */
+				}
+				in.close();
+			}
+			return status < 400;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Runs the trace with the given number of clients. Every client starts at
+	 * a different position of the trace and wraps around at its end. Requests
+	 * completed during the warmup are not counted.
+	 */
+	public static Result run(String baseURL, final List<String> trace, int threads,
+			long warmupNanos, long durationNanos) throws IOException, InterruptedException {
+		final URL[] urls = new URL[trace.size()];
+		for (int i = 0; i < urls.length; i++) {
+			urls[i] = new URL(baseURL + trace.get(i));
+		}
+
+		final long measureStart = System.nanoTime() + warmupNanos;
+		final long end = measureStart + durationNanos;
+
+		final Result[] results = new Result[threads];
+		Thread[] clients = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final Result result = results[t] = new Result();
+			final int offset = (int) ((long) t * urls.length / threads);
+			clients[t] = new Thread("LoadTest-" + t) {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					for (int i = offset; ; i++) {
+						long start = System.nanoTime();
+						if (start >= end) {
+							break;
+						}
+						boolean success = send(urls[i % urls.length], buffer);
+						long stop = System.nanoTime();
+						if (start >= measureStart && stop <= end) {
+							result.record(stop - start);
+							if (!success) {
+								result.errors++;
+							}
+						}
+					}
+				}
+			};
+			clients[t].start();
+		}
+
+		Result total = new Result();
+		for (int t = 0; t < threads; t++) {
+			clients[t].join();
+			total.add(results[t]);
+		}
+		Arrays.sort(total.latencies, 0, total.count);
+		return total;
+	}
+
+	private static int[] parseThreads(String list) {
+		String[] tokens = list.split(",");
+		int[] threads = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			threads[i] = Integer.parseInt(tokens[i].trim());
+		}
+		return threads;
+	}
+
+	private static int getFreePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("-data", "../WebService/WebContent/data");
+		options.put("-threads", "1,4,16,64");
+		options.put("-warmup", "5");
+		options.put("-duration", "20");
+		options.put("-requests", "100000");
+		options.put("-search", "0.1");
+		options.put("-spread", "0.02");
+		options.put("-seed", "1");
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("-") || i + 1 == args.length) {
+				System.err.println(USAGE);
+				System.exit(1);
+			}
+			options.put(args[i], args[i + 1]);
+		}
+
+		int[] threads = parseThreads(options.get("-threads"));
+		int maxThreads = 0;
+		for (int t: threads) {
+			maxThreads = Math.max(maxThreads, t);
+		}
+		/** HttpURLConnection keeps only 5 idle connections per host by default */
+		System.setProperty("http.maxConnections", String.valueOf(maxThreads));
+
+		File dataDir = new File(options.get("-data"));
+		List<String> trace;
+		if (options.containsKey("-log")) {
+			trace = Traces.parseAccessLog(new File(options.get("-log")));
+			System.out.println("Trace: " + trace.size() + " requests from " + options.get("-log"));
+		} else {
+			trace = Traces.synthesise(dataDir, Integer.parseInt(options.get("-requests")),
+					Double.parseDouble(options.get("-search")), Double.parseDouble(options.get("-spread")),
+					Long.parseLong(options.get("-seed")));
+			System.out.println("Trace: " + trace.size() + " synthesised requests, "
+					+ options.get("-search") + " of them searching");
+		}
+
+		String baseURL = options.get("-url");
+		HttpServer server = null;
+		ExecutorService executor = null;
+		if (baseURL == null) {
+			if (System.getProperty("mathservice.watchData") == null) {
+				System.setProperty("mathservice.watchData", "false");
+			}
+			int port = getFreePort();
+			executor = MathServiceServer.createExecutor();
+			server = MathServiceServer.start(dataDir, port, executor);
+			baseURL = "http://localhost:" + port + "/MathService/";
+		} else if (!baseURL.endsWith("/")) {
+			baseURL += "/";
+		}
+		System.out.println("Target: " + baseURL);
+
+		long warmupNanos = Long.parseLong(options.get("-warmup")) * 1000000000L;
+		long durationNanos = Long.parseLong(options.get("-duration")) * 1000000000L;
+
+		System.out.printf("%8s %9s %9s %8s", "threads", "requests", "req/s", "errors");
+		for (String name: QUANTILE_NAMES) {
+			System.out.printf(" %9s", name + " ms");
+		}
+		System.out.printf(" %9s%n", "max ms");
+
+		try {
+			for (int t: threads) {
+				Result result = run(baseURL, trace, t, warmupNanos, durationNanos);
+				System.out.printf(Locale.ROOT, "%8d %9d %9.1f %7.3f%%", t, result.count,
+						result.count / (durationNanos / 1e9),
+						result.count == 0 ? 0.0 : 100.0 * result.errors / result.count);
+				for (double q: QUANTILES) {
+					System.out.printf(Locale.ROOT, " %9.2f", result.getQuantile(q));
+				}
+				System.out.printf(Locale.ROOT, " %9.2f%n", result.getQuantile(1.0));
+			}
+		} finally {
+			if (server != null) {
+				MathServiceServer.stop(server, executor);
+			}
+		}
+	}
+}
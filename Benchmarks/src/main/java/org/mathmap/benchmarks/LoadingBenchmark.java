@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import mathservice.DataSet;
+import mathservice.MSC;
+import mathservice.MSCGrid;
+
+/**
+ * Benchmarks of the loaders that build a DataSet from the files of the
+ * data directory, i.e. the work done on deployment and on every reload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadingBenchmark {
+	/** directory containing Descriptions.txt, MergedPlotData.txt and the grid */
+	@Param({"../WebService/WebContent/data"})
+	public String dataDir;
+
+	private Map<String, String> name2desc;
+	private File[] csvFiles;
+
+	@Setup
+	public void setup() throws IOException {
+		name2desc = DataSet.parseDescriptions(new File(dataDir, "Descriptions.txt"));
+		List<File> files = new ArrayList<File>();
+		for (int level = 0; new File(dataDir, "MSCGrid" + level + ".csv").exists(); ++level) {
+			files.add(new File(dataDir, "MSCGrid" + level + ".csv"));
+		}
+		csvFiles = files.toArray(new File[files.size()]);
+	}
+
+	@Benchmark
+	public Map<String, String> parseDescriptions() throws IOException {
+		return DataSet.parseDescriptions(new File(dataDir, "Descriptions.txt"));
+	}
+
+	@Benchmark
+	public List<MSC> parsePlotData() throws IOException {
+		List<MSC> mscs = new ArrayList<MSC>();
+		DataSet.parsePlotData(new File(dataDir, "MergedPlotData.txt"), name2desc, mscs, new HashMap<String, MSC>());
+		return mscs;
+	}
+
+	/**
+	 * Maps MSCGrid.bin, or parses the CSV files if there is none.
+	 */
+	@Benchmark
+	public MSCGrid parseGrid() throws IOException {
+		return DataSet.parseGrid(new File(dataDir));
+	}
+
+	@Benchmark
+	public MSCGrid parseGridCSV() throws IOException {
+		return MSCGrid.parseCSV(csvFiles);
+	}
+
+	/**
+	 * Everything done on a reload: all of the above plus the search indices
+	 * and the pre-rendered responses.
+	 */
+	@Benchmark
+	public DataSet load() throws IOException {
+		return DataSet.load(new File(dataDir));
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import mathservice.DataSet;
+import mathservice.MSC;
+import mathservice.MSCNearby;
+
+/**
+ * Benchmarks of the lookups the webservice answers from a loaded DataSet:
+ * resolving locations (mscquery), the closest MSCs to a location
+ * (mscnearby), ranked search (msclookup) and prefix completion
+ * (mscsuggest). Every lookup is measured single-threaded as
+ * average time and on all cores as throughput.
+ *
+ * The locations are uniformly distributed over the map, so most of them
+ * hit the ocean, like clicks next to the islands do; the queries are a
+ * mix of codes, words and partially typed words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+	private static final String[] QUERIES = {
+		"35Q30", "35-XX", "fluid mechanics", "navier stokes", "partial differential equations",
+		"graph theory", "probab", "number theory", "topolog", "MSC05C"
+	};
+
+	private static final String[] PREFIXES = {"3", "35", "35Q", "flu", "navier st", "prob", "alg", "g"};
+
+	/** directory containing Descriptions.txt, MergedPlotData.txt and the grid */
+	@Param({"../WebService/WebContent/data"})
+	public String dataDir;
+
+	private DataSet data;
+
+	@Setup
+	public void setup() throws IOException {
+		data = DataSet.load(new File(dataDir));
+	}
+
+	/**
+	 * Per thread sequence of locations and queries, so threads do not
+	 * share a counter.
+	 */
+	@State(Scope.Thread)
+	public static class Requests {
+		private static final int POINTS = 4096;
+
+		private final double[] lats = new double[POINTS];
+		private final double[] lngs = new double[POINTS];
+		private int next;
+
+		@Setup
+		public void setup() {
+			Random random = new Random(42);
+			for (int i = 0; i < POINTS; i++) {
+				lats[i] = random.nextDouble();
+				lngs[i] = random.nextDouble();
+			}
+		}
+
+		int next() {
+			next = (next + 1) & (POINTS - 1);
+			return next;
+		}
+	}
+
+	@Benchmark
+	public MSC getMSCByLocation(Requests requests) {
+		int i = requests.next();
+		return data.getMSCByLocation(requests.lats[i], requests.lngs[i], i & 1);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public MSC getMSCByLocationThroughput(Requests requests) {
+		return getMSCByLocation(requests);
+	}
+
+	@Benchmark
+	public MSC getNearestMSC(Requests requests) {
+		int i = requests.next();
+		return data.getNearestMSC(requests.lats[i], requests.lngs[i], i & 1);
+	}
+
+	@Benchmark
+	public MSCNearby getNearbyMSCs(Requests requests) {
+		int i = requests.next();
+		return data.getNearbyMSCs(requests.lats[i], requests.lngs[i], i & 1, 10);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<MSC> getMSCsByString(Requests requests) {
+		return data.getMSCsByString(QUERIES[requests.next() % QUERIES.length], 10);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public List<MSC> getMSCsByStringThroughput(Requests requests) {
+		return getMSCsByString(requests);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<MSC> getSuggestions(Requests requests) {
+		return data.getSuggestions(PREFIXES[requests.next() % PREFIXES.length], 10);
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.openjdk.jmh.annotations.*;
+
+import mathservice.DataSetManager;
+import mathservice.MathServiceServer;
+
+/**
+ * Benchmarks of complete requests to the MathService APIs, including
+ * Jersey's dispatch and the JSONP response, but without any network. The
+ * requests are passed to Jersey in-process, configured as in the
+ * standalone server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceBenchmark {
+	private static final URI BASE = URI.create("http://localhost/MathService/");
+
+	/** directory containing Descriptions.txt, MergedPlotData.txt and the grid */
+	@Param({"../WebService/WebContent/data"})
+	public String dataDir;
+
+	private ApplicationHandler handler;
+
+	@Setup
+	public void setup() throws Exception {
+		DataSetManager.start(new File(dataDir), false, 16);
+		handler = new ApplicationHandler(MathServiceServer.createResourceConfig());
+	}
+
+	@TearDown
+	public void tearDown() {
+		DataSetManager.stop();
+	}
+
+	private byte[] get(String path) throws Exception {
+		ContainerRequest request = new ContainerRequest(BASE, BASE.resolve(path), "GET", null,
+				new MapPropertiesDelegate());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		handler.apply(request, out).get();
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] mscquery() throws Exception {
+		return get("mscquery?lat=0.5&long=0.5&zoom=9&callback=getMsc");
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public byte[] mscqueryThroughput() throws Exception {
+		return mscquery();
+	}
+
+	@Benchmark
+	public byte[] msclookup() throws Exception {
+		return get("v2/msclookup?search=fluid%20mechanics&callback=getMsc");
+	}
+}
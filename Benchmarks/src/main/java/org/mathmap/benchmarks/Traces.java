@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mathservice.DataSet;
+
+/**
+ * Request traces for the LoadTest. A trace is a list of request paths
+ * relative to the base URL of the service, e.g.
+ * mscquery?lat=0.51&amp;long=0.47&amp;zoom=12&amp;callback=getMsc.
+ */
+public class Traces {
+	/** the request of a line of an access log in the NCSA format of nginx and Jetty */
+	private static final Pattern REQUEST = Pattern.compile("\"GET (\\S*/MathService/(\\S+)) HTTP/[0-9.]+\"");
+
+	/** zoom levels of the tile layer of the frontend */
+	private static final int MIN_ZOOM = 10;
+	private static final int MAX_ZOOM = 14;
+
+	/**
+	 * Reads the GET requests to the MathService from an access log, in the
+	 * order in which they were logged.
+	 */
+	public static List<String> parseAccessLog(File log) throws IOException {
+		List<String> trace = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(log));
+		String line = br.readLine();
+		while (line != null) {
+			Matcher matcher = REQUEST.matcher(line);
+			if (matcher.find()) {
+				trace.add(matcher.group(2));
+			}
+			line = br.readLine();
+		}
+		br.close();
+
+		if (trace.isEmpty()) {
+			throw new IOException("No requests to /MathService/ in " + log);
+		}
+		return trace;
+	}
+
+	/**
+	 * Synthesises the traffic of the frontend: clicks on the map (mscquery)
+	 * and searches, which are typed letter by letter (one mscsuggest per
+	 * letter) and then submitted (msclookup).
+	 *
+	 * The clicks are scattered around the centroids of the top level classes
+	 * in MergedPlotData.txt, with a normal distribution of standard deviation
+	 * spread in map coordinates. A class is picked with a probability
+	 * proportional to its area, i.e. its number of publications, so large
+	 * areas get more clicks, like on the real map.
+	 *
+	 * @param dataDir     directory containing Descriptions.txt and MergedPlotData.txt
+	 * @param size        number of requests
+	 * @param searchRatio fraction of the requests belonging to searches
+	 * @param spread      standard deviation of a click around a centroid
+	 * @param seed        seed of the random numbers, the same seed gives the same trace
+	 */
+	public static List<String> synthesise(File dataDir, int size, double searchRatio, double spread,
+			long seed) throws IOException {
+		Map<String, String> name2desc = DataSet.parseDescriptions(new File(dataDir, "Descriptions.txt"));
+		List<mathservice.MSC> mscs = new ArrayList<mathservice.MSC>();
+		DataSet.parsePlotData(new File(dataDir, "MergedPlotData.txt"), name2desc, mscs,
+				new HashMap<String, mathservice.MSC>());
+
+		/** cumulative areas of the top level classes to draw them by area */
+		List<mathservice.MSC> topLevel = new ArrayList<mathservice.MSC>();
+		List<Double> cumulativeArea = new ArrayList<Double>();
+		double areaSum = 0.0;
+		for (mathservice.MSC msc: mscs) {
+			if (msc.getName().endsWith("-XX")) {
+				areaSum += msc.getArea();
+				topLevel.add(msc);
+				cumulativeArea.add(areaSum);
+			}
+		}
+		if (topLevel.isEmpty()) {
+			throw new IOException("No top level classes in " + new File(dataDir, "MergedPlotData.txt"));
+		}
+
+		List<String> words = new ArrayList<String>();
+		for (String desc: name2desc.values()) {
+			for (String word: desc.split("[^\\p{L}]+")) {
+				if (word.length() >= 4) {
+					words.add(word.toLowerCase(Locale.ROOT));
+				}
+			}
+		}
+
+		Random random = new Random(seed);
+		List<String> trace = new ArrayList<String>(size);
+		while (trace.size() < size) {
+			if (random.nextDouble() < searchRatio && !words.isEmpty()) {
+				String word = words.get(random.nextInt(words.size()));
+				for (int i = 1; i <= word.length() && trace.size() < size; i++) {
+					trace.add("mscsuggest?limit=10&prefix=" + encode(word.substring(0, i)) + "&callback=getSuggestions");
+				}
+				if (trace.size() < size) {
+					trace.add("v2/msclookup?search=" + encode(word) + "&callback=getMscs");
+				}
+			} else {
+				int idx = Collections.binarySearch(cumulativeArea, random.nextDouble() * areaSum);
+				mathservice.MSC msc = topLevel.get(idx < 0 ? -idx - 1 : idx);
+				double lat = toMapSpace(msc.getX()) + random.nextGaussian() * spread;
+				double lng = toMapSpace(msc.getY()) + random.nextGaussian() * spread;
+				int zoom = MIN_ZOOM + random.nextInt(MAX_ZOOM - MIN_ZOOM + 1);
+				trace.add(String.format(Locale.ROOT, "mscquery?lat=%.6f&long=%.6f&zoom=%d&callback=getMsc",
+						lat, lng, zoom));
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Scales a plot coordinate in [-0.5, 0.5] to the map in the same way as
+	 * GenerateOSM.toImageSpace() does before dividing by the resolution.
+	 */
+	static double toMapSpace(double coord) {
+		return (coord + 0.55) * 0.9;
+	}
+
+	private static String encode(String text) {
+		try {
+			return URLEncoder.encode(text, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
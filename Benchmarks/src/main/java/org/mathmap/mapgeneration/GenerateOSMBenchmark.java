@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.mapgeneration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the stages of the map generation, in the order in which
+ * exportToOSM() runs them, on the PlotData.txt of a dataset in MapData/ZBMath.
+ * The class lives in the package of GenerateOSM to reach the stages, which
+ * are package-private.
+ *
+ * Every stage works on the results of the previous ones, which are computed
+ * once per trial. The stages that consume their input (ordering the border
+ * coordinates) get a fresh copy per invocation. The OSM output goes to a
+ * temporary file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class GenerateOSMBenchmark {
+	/** directory containing the yearly (1978) and cumulative (cuml1986) datasets */
+	@Param({"../MapData/ZBMath"})
+	public String mapData;
+
+	@Param({"../MapData/Desc_msc2010-final.txt"})
+	public String descFile;
+
+	@Param({"1978", "cuml1986", "cuml2014"})
+	public String dataset;
+
+	@Param({"512", "1024", "2048", "4096"})
+	public int resolution;
+
+	private GenerateOSM osm;
+	private File osmOutput;
+
+	private BorderPointSet coastLine;
+	private Map<MSC, BorderPointSet> borderCoords;
+
+	/** everything the OSM file of the map consists of, for writeOSM() */
+	private Set<Coords2D> gridNodes;
+	private List<List<Coords2D>> ways;
+
+	@Setup
+	public void setup() throws IOException {
+		/** the constructor already runs computeMapData() */
+		osm = new GenerateOSM(new File(mapData, dataset + "/PlotData.txt"), null, new File(descFile), resolution);
+		osmOutput = File.createTempFile(dataset, ".osm");
+
+		osm.labelImage();
+		osm.detectImageBorders();
+		osm.createGraph(false);
+		osm.resetColoring();
+		osm.colorGraph();
+
+		coastLine = new BorderPointSet(osm.getCoastLine());
+		borderCoords = new HashMap<MSC, BorderPointSet>();
+		gridNodes = new LinkedHashSet<Coords2D>();
+		addGridNodes(coastLine);
+		for (Map.Entry<MSC, BorderPointSet> entry: osm.getBorderCoords().entrySet()) {
+			borderCoords.put(entry.getKey(), new BorderPointSet(entry.getValue()));
+			addGridNodes(entry.getValue());
+		}
+
+		ways = new ArrayList<List<Coords2D>>(osm.traceBorders(new BorderPointSet(coastLine), null));
+		for (Map.Entry<MSC, BorderPointSet> entry: borderCoords.entrySet()) {
+			if (entry.getKey() != null) {
+				ways.addAll(osm.traceBorders(new BorderPointSet(entry.getValue()), entry.getKey()));
+			}
+		}
+
+		/** traces the borders once more for simplifyBorders() */
+		osm.exportToOSM(osmOutput);
+	}
+
+	private void addGridNodes(BorderPointSet borderPoints) {
+		for (int slot = 0; slot < borderPoints.slots(); ++slot) {
+			if (borderPoints.idAt(slot) != BorderPointSet.EMPTY) {
+				gridNodes.add(osm.toCoords(borderPoints.idAt(slot)));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		osmOutput.delete();
+	}
+
+	/**
+	 * Fresh copies of the border coordinates, traceBorders() removes the
+	 * coordinates it has visited.
+	 */
+	@State(Scope.Thread)
+	public static class Borders {
+		private BorderPointSet coastLine;
+		private Map<MSC, BorderPointSet> countries;
+
+		@Setup(Level.Invocation)
+		public void setup(GenerateOSMBenchmark benchmark) {
+			coastLine = new BorderPointSet(benchmark.coastLine);
+			countries = new HashMap<MSC, BorderPointSet>();
+			for (Map.Entry<MSC, BorderPointSet> entry: benchmark.borderCoords.entrySet()) {
+				if (entry.getKey() != null) {
+					countries.put(entry.getKey(), new BorderPointSet(entry.getValue()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Splatting the radial basis functions of all MSCs onto the grid, with
+	 * one thread per core.
+	 */
+	@Benchmark
+	public GenerateOSM computeMapData() {
+		osm.setThreads(Runtime.getRuntime().availableProcessors());
+		osm.computeMapData();
+		return osm;
+	}
+
+	/**
+	 * The same on a single thread.
+	 */
+	@Benchmark
+	public GenerateOSM computeMapDataSequential() {
+		osm.setThreads(1);
+		osm.computeMapData();
+		return osm;
+	}
+
+	/**
+	 * Labelling the water regions to tell lakes from the ocean.
+	 */
+	@Benchmark
+	public GenerateOSM labelImage() {
+		osm.labelImage();
+		return osm;
+	}
+
+	/**
+	 * Collecting the border and coastline coordinates.
+	 */
+	@Benchmark
+	public GenerateOSM detectImageBorders() {
+		osm.detectImageBorders();
+		return osm;
+	}
+
+	/**
+	 * Tracing the coastline, as in orderAndOrientateCoastline().
+	 */
+	@Benchmark
+	public List<List<Coords2D>> orderCoastLine(Borders borders) {
+		return osm.traceBorders(borders.coastLine, null);
+	}
+
+	/**
+	 * Tracing the borders of all MSCs, as in renderCountryBorders().
+	 */
+	@Benchmark
+	public int orderCountryBorders(Borders borders) {
+		int count = 0;
+		for (Map.Entry<MSC, BorderPointSet> country: borders.countries.entrySet()) {
+			count += osm.traceBorders(country.getValue(), country.getKey()).size();
+		}
+		return count;
+	}
+
+	/**
+	 * Simplifying the traced borders for tiles of zoom level 10, as in
+	 * exportToOSM() with a tolerance.
+	 */
+	@Benchmark
+	public BitSet simplifyBorders() {
+		return osm.simplifyBorders(osm.getTolerance(10));
+	}
+
+	/**
+	 * Building the adjacency matrix of the top level MSCs from the grid.
+	 */
+	@Benchmark
+	public GenerateOSM createGraph() {
+		osm.createGraph(false);
+		return osm;
+	}
+
+	@Benchmark
+	public GenerateOSM colorGraph() {
+		osm.resetColoring();
+		osm.colorGraph();
+		return osm;
+	}
+
+	/**
+	 * Formatting and writing the nodes and ways of the map through OSMFile,
+	 * without computing them.
+	 */
+	@Benchmark
+	public File writeOSM() throws IOException {
+		OSMFile osmFile = new OSMFile(osmOutput, resolution);
+		for (Coords2D coords: gridNodes) {
+			osmFile.addGridNode(coords.getX(), coords.getY());
+		}
+		int counter = 0;
+		for (List<Coords2D> way: ways) {
+			osmFile.addWay("way" + ++counter);
+			for (Coords2D coords: way) {
+				osmFile.addGridNodeReference(coords.getX(), coords.getY());
+			}
+			osmFile.addTag("name", "way" + counter);
+			osmFile.endWay();
+		}
+		osmFile.close();
+		return osmOutput;
+	}
+
+	/**
+	 * All of the above except computeMapData(), i.e. the whole exportToOSM().
+	 */
+	@Benchmark
+	public File exportToOSM() throws IOException {
+		osm.exportToOSM(osmOutput);
+		return osmOutput;
+	}
+}
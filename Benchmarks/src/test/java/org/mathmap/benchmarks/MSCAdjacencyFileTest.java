@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mathmap.mapgeneration.MSCAdjacencyFile;
+
+import mathservice.MSCAdjacency;
+import mathservice.MSCGrid;
+
+/**
+ * Round trip of MSCNeighbors.bin: the graphs written by MSCAdjacencyFile of
+ * the map generation have to be read back by MSCAdjacency of the
+ * webservice, every border in both directions and sorted by name.
+ */
+public class MSCAdjacencyFileTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * @return the neighbours of name on the level, in the order they are stored
+	 */
+	private static List<String> neighbors(MSCAdjacency adjacency, int level, String name) {
+		List<String> neighbors = new ArrayList<String>();
+		int idx = adjacency.indexOf(level, name);
+		if (idx >= 0) {
+			for (int i = adjacency.getStart(level, idx); i < adjacency.getEnd(level, idx); i++) {
+				neighbors.add(adjacency.getName(level, adjacency.getTarget(level, i)));
+			}
+		}
+		return neighbors;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		MSCAdjacencyFile adjacencyFile = new MSCAdjacencyFile(2);
+		adjacencyFile.addEdge(0, "MSC35-XX", "MSC00-XX");
+		adjacencyFile.addEdge(0, "MSC35-XX", "MSC76-XX");
+		/** duplicates and loops are ignored */
+		adjacencyFile.addEdge(0, "MSC76-XX", "MSC35-XX");
+		adjacencyFile.addEdge(0, "MSC00-XX", "MSC00-XX");
+		adjacencyFile.addEdge(1, "MSC35Bxx", "MSC35Axx");
+		File file = folder.newFile("MSCNeighbors.bin");
+		adjacencyFile.write(file);
+
+		MSCAdjacency adjacency = MSCAdjacency.read(file);
+		assertEquals(2, adjacency.getLevels());
+		assertEquals(3, adjacency.size(0));
+		assertEquals(2, adjacency.size(1));
+		assertEquals(Arrays.asList("MSC00-XX", "MSC76-XX"), neighbors(adjacency, 0, "MSC35-XX"));
+		assertEquals(Arrays.asList("MSC35-XX"), neighbors(adjacency, 0, "MSC00-XX"));
+		assertEquals(Arrays.asList("MSC35-XX"), neighbors(adjacency, 0, "MSC76-XX"));
+		assertEquals(Arrays.asList("MSC35Axx"), neighbors(adjacency, 1, "MSC35Bxx"));
+		assertEquals(-1, adjacency.indexOf(0, "MSC35Axx"));
+		assertEquals(-1, adjacency.indexOf(1, "MSC35-XX"));
+	}
+
+	@Test
+	public void emptyLevels() throws IOException {
+		File file = folder.newFile("MSCNeighborsEmpty.bin");
+		new MSCAdjacencyFile(2).write(file);
+
+		MSCAdjacency adjacency = MSCAdjacency.read(file);
+		assertEquals(2, adjacency.getLevels());
+		assertEquals(0, adjacency.size(0));
+		assertEquals(0, adjacency.size(1));
+	}
+
+	@Test
+	public void shippedGraphIsSymmetric() throws IOException {
+		File dataDir = new File("../WebService/WebContent/data/cuml1986");
+		MSCAdjacency adjacency = MSCAdjacency.read(new File(dataDir, "MSCNeighbors.bin"));
+		MSCGrid grid = MSCGrid.map(new File(dataDir, "MSCGrid.bin"));
+		Set<String> gridNames = new HashSet<String>();
+		for (int i = 0; i < grid.size(); i++) {
+			gridNames.add(grid.getName(i));
+		}
+
+		for (int level = 0; level < adjacency.getLevels(); level++) {
+			for (int idx = 0; idx < adjacency.size(level); idx++) {
+				String name = adjacency.getName(level, idx);
+				assertTrue(name + " is not on the map", gridNames.contains(name));
+				List<String> neighbors = neighbors(adjacency, level, name);
+				assertFalse(name + " has no neighbours", neighbors.isEmpty());
+				assertEquals(new ArrayList<String>(new TreeSet<String>(neighbors)), neighbors);
+				for (String neighbor: neighbors) {
+					assertTrue(neighbor + " misses " + name, neighbors(adjacency, level, neighbor).contains(name));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mathmap.mapgeneration.MSCGridFile;
+
+import mathservice.MSCGrid;
+
+/**
+ * Round trip of MSCGrid.bin: grids written by MSCGridFile of the map
+ * generation have to be read back cell by cell by MSCGrid of the
+ * webservice, for dense and quadtree levels and for files of version 1.
+ */
+public class MSCGridFileTest {
+	private static final String[] NAMES = {null, "MSC00-XX", "MSC35-XX", "MSC35Axx", "MSC35A01", "MSC76-XX"};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * @return name of cell (x, y) of a level, in blocks so that fine levels
+	 *         are stored as quadtree
+	 */
+	private static String name(int level, int x, int y) {
+		int block = 1 << (2 * level + 2);
+		return NAMES[((x / block) * 7 + (y / block) * 3 + level) % NAMES.length];
+	}
+
+	private static void assertCells(MSCGrid grid, int level, int resolution) {
+		for (int x = 0; x < resolution; x++) {
+			for (int y = 0; y < resolution; y++) {
+				String expected = name(level, x, y);
+				String actual = grid.getName(grid.getIndex(level, x, y));
+				if (!(expected == null ? "null" : expected).equals(actual)) {
+					fail("level " + level + " cell (" + x + ", " + y + "): " + actual + " instead of " + expected);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void denseAndQuadtreeLevels() throws IOException {
+		/** the last level exceeds MSCGridFile.MAX_DENSE_CELLS */
+		int[] resolutions = {256, 512, 2048};
+		MSCGridFile gridFile = new MSCGridFile(resolutions);
+		for (int level = 0; level < resolutions.length; level++) {
+			for (int x = 0; x < resolutions[level]; x++) {
+				for (int y = 0; y < resolutions[level]; y++) {
+					gridFile.set(level, x, y, name(level, x, y));
+				}
+			}
+		}
+		File file = folder.newFile("MSCGrid.bin");
+		gridFile.write(file);
+
+		MSCGrid grid = MSCGrid.map(file);
+		assertEquals(resolutions.length, grid.getLevels());
+		assertEquals("null", grid.getName(0));
+		for (int level = 0; level < resolutions.length; level++) {
+			assertEquals(resolutions[level], grid.getResolution(level));
+			assertCells(grid, level, resolutions[level]);
+		}
+		assertTrue("the bottom level should be stored as quadtree",
+				grid.getCellBytes() < 2L * (256 * 256 + 512 * 512 + 2048 * 2048));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void version1() throws IOException {
+		/** as written before levels had their own header: magic, version, resolution, levels, names, cells */
+		int resolution = 64;
+		int levels = 2;
+		File file = folder.newFile("MSCGridV1.bin");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(MSCGridFile.MAGIC);
+			out.writeInt(1);
+			out.writeInt(resolution);
+			out.writeInt(levels);
+			out.writeInt(NAMES.length);
+			out.writeUTF(MSCGridFile.NULL_NAME);
+			for (int i = 1; i < NAMES.length; i++) {
+				out.writeUTF(NAMES[i]);
+			}
+			for (int level = 0; level < levels; level++) {
+				for (int x = 0; x < resolution; x++) {
+					for (int y = 0; y < resolution; y++) {
+						String name = name(level, x, y);
+						int idx = 0;
+						while (idx < NAMES.length && NAMES[idx] != name) {
+							idx++;
+						}
+						out.writeShort(idx);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		MSCGrid grid = MSCGrid.map(file);
+		assertEquals(levels, grid.getLevels());
+		for (int level = 0; level < levels; level++) {
+			assertEquals(resolution, grid.getResolution(level));
+			assertCells(grid, level, resolution);
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedFiles() throws IOException {
+		Random random = new Random(1);
+		MSCGridFile gridFile = new MSCGridFile(32, 1);
+		for (int x = 0; x < 32; x++) {
+			gridFile.set(0, x, random.nextInt(32), NAMES[1 + random.nextInt(NAMES.length - 1)]);
+		}
+		File file = folder.newFile("MSCGridTruncated.bin");
+		gridFile.write(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(raf.length() - 2);
+		} finally {
+			raf.close();
+		}
+
+		try {
+			MSCGrid.map(file);
+			fail("a truncated grid should not be mapped");
+		} catch (IOException e) {
+			/** expected */
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ApplicationHandler;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.glassfish.jersey.server.ContainerResponse;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import mathservice.DataSetManager;
+import mathservice.MathServiceServer;
+
+/**
+ * msclookup has to keep the answer of the first MathService for existing
+ * clients: a single MSC object with name, description, x and y wrapped in
+ * the callback (default "callback"), or no content if nothing matches. The
+ * ranked list is answered by v2/msclookup. The requests are passed to
+ * Jersey in-process like in ServiceBenchmark.
+ */
+public class MSCLookupTest {
+	private static final URI BASE = URI.create("http://localhost/MathService/");
+
+	/** the MSC object of the first MathService, as rendered by Jackson */
+	private static final String MSC = "\\{\"name\":\"MSC[^\"]+\",\"description\":\"[^\"]*\","
+			+ "\"x\":-?[0-9.E-]+,\"y\":-?[0-9.E-]+\\}";
+
+	private static ApplicationHandler handler;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		DataSetManager.start(new File("../WebService/WebContent/data"), false, 16);
+		handler = new ApplicationHandler(MathServiceServer.createResourceConfig());
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		DataSetManager.stop();
+	}
+
+	private static ContainerResponse get(String path, ByteArrayOutputStream out) throws Exception {
+		ContainerRequest request = new ContainerRequest(BASE, BASE.resolve(path), "GET", null,
+				new MapPropertiesDelegate());
+		return handler.apply(request, out).get();
+	}
+
+	private static String body(String path) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(path, 200, get(path, out).getStatus());
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void singleObject() throws Exception {
+		String body = body("msclookup?search=fluid%20mechanics&callback=getMsc");
+		assertTrue(body, body.matches("getMsc\\(" + MSC + "\\)"));
+		assertTrue(body, body.startsWith("getMsc({\"name\":\"MSC76-XX\","));
+	}
+
+	@Test
+	public void defaultCallback() throws Exception {
+		String body = body("msclookup?search=algebra");
+		assertTrue(body, body.matches("callback\\(" + MSC + "\\)"));
+	}
+
+	@Test
+	public void noMatch() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(204, get("msclookup?search=zzzqqq&callback=getMsc", out).getStatus());
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	public void rankedList() throws Exception {
+		String body = body("v2/msclookup?search=fluid%20mechanics&limit=3&callback=getMscs");
+		assertTrue(body, body.matches("getMscs\\(\\[" + MSC + "(," + MSC + "){0,2}\\]\\)"));
+		assertTrue(body, body.startsWith("getMscs([{\"name\":\"MSC76-XX\","));
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.benchmarks;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mathmap.mapgeneration.Coords2D;
+import org.mathmap.mapgeneration.MSCPolygonFile;
+
+import mathservice.MSCGrid;
+import mathservice.MSCPolygons;
+
+/**
+ * Round trip of MSCPolygons.bin: rings written by MSCPolygonFile of the map
+ * generation have to be found by the point-in-polygon test of MSCPolygons
+ * of the webservice. On the shipped data the polygons have to agree with
+ * the grid in every cell.
+ */
+public class MSCPolygonFileTest {
+	private static final int RESOLUTION = 16;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * @return the border of the cells [x0, x1] x [y0, y1], in grid coordinates
+	 */
+	private static List<Coords2D> square(int x0, int y0, int x1, int y1) {
+		List<Coords2D> ring = new ArrayList<Coords2D>();
+		ring.add(new Coords2D(x0 - 0.5, y0 - 0.5));
+		ring.add(new Coords2D(x0 - 0.5, y1 + 0.5));
+		ring.add(new Coords2D(x1 + 0.5, y1 + 0.5));
+		ring.add(new Coords2D(x1 + 0.5, y0 - 0.5));
+		return ring;
+	}
+
+	/**
+	 * @return name of the MSC whose polygon contains the centre of cell (x, y)
+	 */
+	private static String lookup(MSCPolygons polygons, int level, int x, int y) {
+		int idx = polygons.getIndex(level, (double) x / RESOLUTION, (double) y / RESOLUTION);
+		return idx == MSCPolygons.AMBIGUOUS ? "ambiguous" : polygons.getName(idx);
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		MSCPolygonFile polygonFile = new MSCPolygonFile(RESOLUTION, 2);
+		/** a class with a lake, an island in the lake and an overlapping class */
+		polygonFile.addRing(0, "MSC35-XX", square(2, 2, 9, 9));
+		polygonFile.addRing(0, "MSC35-XX", square(4, 4, 6, 6));
+		polygonFile.addRing(0, "MSC76-XX", square(5, 5, 5, 5));
+		polygonFile.addRing(0, "MSC00-XX", square(9, 9, 12, 12));
+		/** a ring next to the outermost cells, which GenerateOSM keeps free of land */
+		polygonFile.addRing(1, "MSC35Axx", square(1, 1, 3, RESOLUTION - 2));
+		File file = folder.newFile("MSCPolygons.bin");
+		polygonFile.write(file);
+
+		MSCPolygons polygons = MSCPolygons.map(file);
+		assertEquals(RESOLUTION, polygons.getResolution());
+		assertEquals(2, polygons.getLevels());
+		assertEquals("null", polygons.getName(0));
+
+		assertEquals("MSC35-XX", lookup(polygons, 0, 2, 2));
+		assertEquals("MSC35-XX", lookup(polygons, 0, 3, 8));
+		assertEquals("null", lookup(polygons, 0, 4, 4));
+		assertEquals("MSC76-XX", lookup(polygons, 0, 5, 5));
+		assertEquals("ambiguous", lookup(polygons, 0, 9, 9));
+		assertEquals("MSC00-XX", lookup(polygons, 0, 11, 11));
+		assertEquals("null", lookup(polygons, 0, 0, 0));
+		assertEquals("null", lookup(polygons, 0, 14, 3));
+
+		for (int y = 1; y < RESOLUTION - 1; y++) {
+			assertEquals("null", lookup(polygons, 1, 0, y));
+			assertEquals("MSC35Axx", lookup(polygons, 1, 1, y));
+			assertEquals("MSC35Axx", lookup(polygons, 1, 3, y));
+			assertEquals("null", lookup(polygons, 1, 4, y));
+		}
+		assertEquals("null", lookup(polygons, 1, 2, 0));
+		assertEquals("null", lookup(polygons, 1, 2, RESOLUTION - 1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsBordersOutsideTheMap() {
+		new MSCPolygonFile(RESOLUTION, 1).addRing(0, "MSC35-XX", square(0, 0, 3, 3));
+	}
+
+	@Test
+	public void agreesWithGrid() throws IOException {
+		File dataDir = new File("../WebService/WebContent/data/cuml1986");
+		MSCGrid grid = MSCGrid.map(new File(dataDir, "MSCGrid.bin"));
+		MSCPolygons polygons = MSCPolygons.map(new File(dataDir, "MSCPolygons.bin"));
+		assertEquals(grid.getResolution(), polygons.getResolution());
+
+		for (int level = 0; level < polygons.getLevels(); level++) {
+			int resolution = grid.getResolution(level);
+			int ambiguous = 0;
+			for (int x = 0; x < resolution; x++) {
+				for (int y = 0; y < resolution; y++) {
+					/** cell (x, y) is centred on (x, y), its borders lie on half cells */
+					int idx = polygons.getIndex(level, (double) x / resolution, (double) y / resolution);
+					if (idx == MSCPolygons.AMBIGUOUS) {
+						ambiguous++;
+						continue;
+					}
+					String expected = grid.getName(grid.getIndex(level, x, y));
+					if (!expected.equals(polygons.getName(idx))) {
+						fail("level " + level + " cell (" + x + ", " + y + "): " + polygons.getName(idx)
+								+ " instead of " + expected);
+					}
+				}
+			}
+			/** the service would answer them from the grid, but the rings of a level should not overlap */
+			assertEquals("ambiguous cells of level " + level, 0, ambiguous);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mathmap.mapgeneration;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import mathservice.MSCGrid;
+import mathservice.MSCPolygons;
+
+/**
+ * Maps whose land reaches the edge of the grid, which happens with a large
+ * spread. clearFrame() has to turn only the outermost cells into ocean, and
+ * the borders of such a map have to stay inside the grid: every way of the
+ * OSM file references existing nodes, and the polygons read back by the
+ * webservice agree with the grid. The class lives in the package of
+ * GenerateOSM to reach the splatting and clearFrame(), which are
+ * package-private.
+ */
+public class EdgeOfMapTest {
+	private static final File PLOT_DATA = new File("../MapData/ZBMath/cuml1986/PlotData.txt");
+	private static final File DESC_FILE = new File("../MapData/Desc_msc2010-final.txt");
+	private static final int RESOLUTION = 256;
+
+	/** large enough for the bubbles of cuml1986 to reach the edge at RESOLUTION */
+	private static final double EDGE_SPREAD = 1000;
+
+	private static final Pattern NODE = Pattern.compile("<node id='(-?\\d+)'");
+	private static final Pattern REFERENCE = Pattern.compile("<nd ref='(-?\\d+)'");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static GenerateOSM generate(double spread) throws IOException {
+		return new GenerateOSM(PLOT_DATA, null, DESC_FILE, RESOLUTION, 1, Kernel.COSINE, spread);
+	}
+
+	private static boolean isFrame(int i, int j) {
+		return i == 0 || j == 0 || i == RESOLUTION - 1 || j == RESOLUTION - 1;
+	}
+
+	/**
+	 * Splats the map again and checks that clearFrame() only turns the land
+	 * of the outermost cells into ocean.
+	 * @return number of cells clearFrame() cut off
+	 */
+	private static int assertClearFrame(GenerateOSM osm) {
+		osm.splatMapData();
+		MSC[][] splatted = new MSC[RESOLUTION][RESOLUTION];
+		int frameLand = 0;
+		for (int i = 0; i < RESOLUTION; i++) {
+			for (int j = 0; j < RESOLUTION; j++) {
+				splatted[i][j] = osm.getCell(i, j);
+				if (isFrame(i, j) && splatted[i][j] != null) {
+					frameLand++;
+				}
+			}
+		}
+
+		assertEquals(frameLand, osm.clearFrame());
+		for (int i = 0; i < RESOLUTION; i++) {
+			for (int j = 0; j < RESOLUTION; j++) {
+				if (isFrame(i, j)) {
+					assertNull("cell (" + i + ", " + j + ")", osm.getCell(i, j));
+				} else {
+					assertSame("cell (" + i + ", " + j + ")", splatted[i][j], osm.getCell(i, j));
+				}
+			}
+		}
+		return frameLand;
+	}
+
+	@Test
+	public void clearFrameKeepsOrdinaryMaps() throws IOException {
+		assertEquals(0, assertClearFrame(generate(GenerateOSM.DEFAULT_SPREAD)));
+	}
+
+	@Test
+	public void clearFrameOnlyClearsTheFrame() throws IOException {
+		assertTrue("the land should reach the edge", assertClearFrame(generate(EDGE_SPREAD)) > 0);
+	}
+
+	@Test
+	public void bordersStayInsideTheGrid() throws IOException {
+		GenerateOSM osm = generate(EDGE_SPREAD);
+		File osmFile = folder.newFile("Map.osm");
+		File gridFile = folder.newFile("MSCGrid.bin");
+		File polygonFile = folder.newFile("MSCPolygons.bin");
+		osm.exportToOSM(osmFile);
+		osm.exportMSCGridBinary(gridFile);
+		osm.exportMSCPolygons(polygonFile);
+
+		String xml = new String(Files.readAllBytes(osmFile.toPath()), StandardCharsets.UTF_8);
+		Set<String> nodes = new HashSet<String>();
+		Matcher node = NODE.matcher(xml);
+		while (node.find()) {
+			nodes.add(node.group(1));
+		}
+		Matcher reference = REFERENCE.matcher(xml);
+		int references = 0;
+		while (reference.find()) {
+			assertTrue("missing node " + reference.group(1), nodes.contains(reference.group(1)));
+			references++;
+		}
+		assertTrue(references > 0);
+
+		MSCGrid grid = MSCGrid.map(gridFile);
+		MSCPolygons polygons = MSCPolygons.map(polygonFile);
+		for (int level = 0; level < polygons.getLevels(); level++) {
+			for (int x = 0; x < RESOLUTION; x++) {
+				for (int y = 0; y < RESOLUTION; y++) {
+					int idx = polygons.getIndex(level, (double) x / RESOLUTION, (double) y / RESOLUTION);
+					String expected = grid.getName(grid.getIndex(level, x, y));
+					assertTrue("level " + level + " cell (" + x + ", " + y + ") is ambiguous",
+							idx != MSCPolygons.AMBIGUOUS);
+					assertEquals("level " + level + " cell (" + x + ", " + y + ")", expected, polygons.getName(idx));
+				}
+			}
+		}
+	}
+}
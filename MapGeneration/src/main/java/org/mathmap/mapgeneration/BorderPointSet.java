@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mathmap.mapgeneration;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * BorderPointSet is a set of border points encoded as non-negative ints, the ids OSMFile.getGridNodeID() assigns
+ * to them. Unlike a HashSet<Coords2D> it neither allocates per point nor boxes: the ids are stored in a single
+ * array with open addressing and linear probing, which is kept at most half full. Removing a point shifts the
+ * following points of its cluster back instead of leaving a tombstone.
+ *
+ * The points are iterated over the slots of the table:
+ * <pre>
+ *   for (int slot = 0; slot < set.slots(); ++slot) {
+ *       int id = set.idAt(slot);
+ *       if (id != BorderPointSet.EMPTY) { ... }
+ *   }
+ * </pre>
+ */
+public class BorderPointSet {
+    /** marks a free slot, ids are never negative */
+    public static final int EMPTY = -1;
+
+    private int[] table;
+    private int size = 0;
+
+    /** Constructor creating an empty set. */
+    public BorderPointSet() {
+        table = new int[16];
+        Arrays.fill(table, EMPTY);
+    }
+
+    /**
+     * Copy constructor.
+     * @param other set to copy
+     */
+    public BorderPointSet(BorderPointSet other) {
+        table = other.table.clone();
+        size = other.size;
+    }
+
+    private int slotOf(int id) {
+        /** Fibonacci hashing, the ids of neighbouring points differ in their low bits only */
+        return (id * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(table.length));
+    }
+
+    /**
+     * @param id id of a point
+     * @return true if the point was not contained yet
+     */
+    public boolean add(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("negative id " + id);
+        }
+
+        int mask = table.length - 1;
+        int slot = slotOf(id);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = id;
+        if (++size > table.length / 2) {
+            rehash(2 * table.length);
+        }
+        return true;
+    }
+
+    public boolean contains(int id) {
+        int mask = table.length - 1;
+        for (int slot = slotOf(id); table[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (table[slot] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param id id of a point
+     * @return true if the point was contained
+     */
+    public boolean remove(int id) {
+        if (id < 0) {
+            return false;
+        }
+
+        int mask = table.length - 1;
+        int slot = slotOf(id);
+        while (table[slot] != id) {
+            if (table[slot] == EMPTY) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        /** move back every following point of the cluster whose home slot is not between the hole and itself */
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slotOf(table[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = EMPTY;
+        size--;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldTable = table;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        int mask = capacity - 1;
+        for (int id: oldTable) {
+            if (id != EMPTY) {
+                int slot = slotOf(id);
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = id;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the point in the first occupied slot
+     * @throws NoSuchElementException thrown if the set is empty
+     */
+    public int first() {
+        for (int id: table) {
+            if (id != EMPTY) {
+                return id;
+            }
+        }
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * @return number of slots of the table, for iterating with idAt()
+     */
+    public int slots() {
+        return table.length;
+    }
+
+    /**
+     * @param slot slot of the table, between 0 and slots() - 1
+     * @return the point in the slot or EMPTY
+     */
+    public int idAt(int slot) {
+        return table[slot];
+    }
+}
@@ -62,6 +62,23 @@ public class Coords2D {
         return Math.hypot(x - c.x, y - c.y);
     }
 
+    /**
+     * @param a first end of the segment
+     * @param b second end of the segment
+     * @return distance to the closest point of the segment from a to b
+     */
+    public double distanceToSegment(Coords2D a, Coords2D b) {
+        double dx = b.x - a.x;
+        double dy = b.y - a.y;
+        double lengthSq = dx * dx + dy * dy;
+        if (lengthSq == 0.0) {
+            return distanceTo(a);
+        }
+
+        double t = Math.max(0.0, Math.min(1.0, ((x - a.x) * dx + (y - a.y) * dy) / lengthSq));
+        return Math.hypot(x - (a.x + t * dx), y - (a.y + t * dy));
+    }
+
     /**
      * Implementation of equals. Required to be able to use Coords2D in a HashSet
      * @param o Object the current object is compared to
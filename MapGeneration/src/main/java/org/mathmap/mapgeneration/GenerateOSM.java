@@ -21,11 +21,14 @@ package org.mathmap.mapgeneration;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class GenerateOSM {
     private MSC nearestMSC[][];
     private List<MSC> topLevelMSCs;
     private List<MSC> midLevelMSCs;
+    private List<MSC> bottomLevelMSCs;
     private Map<String,String> desc;
     private Map<String, MSC> str2msc;
 
@@ -46,6 +49,21 @@ public class GenerateOSM {
 
     private double currMax[][];
 
+    /** side length of the tiles of the grid computeMapData() splats independently */
+    private static final int TILE_SIZE = 64;
+
+    /** number of threads computeMapData() and labelImage() run with */
+    private int threads;
+
+    /** radial basis function computeMapData() splats the MSCs with */
+    private Kernel kernel = Kernel.COSINE;
+
+    /** spread the maps are generated with unless another one is given */
+    public static final double DEFAULT_SPREAD = 4.5;
+
+    /** scales the areas of the MSCs to the areas of their bubbles, see getScalingFactor() */
+    private double spread = DEFAULT_SPREAD;
+
     private int[][] graph;
     private int[] degrees;
 
@@ -61,14 +79,17 @@ public class GenerateOSM {
      */
     private int[][] labels;
 
-    /** map which remembers which coordinates belong to a given MSC */
-    private Map<MSC, HashSet<Coords2D>> msc2coords = new HashMap<MSC, HashSet<Coords2D>>();
+    /** union-find forest over the cells used by labelImage(), kept to be reused */
+    private int[] parents;
+
+    /** map which remembers which border points belong to a given MSC, see getGridNodeID() for their ids */
+    private Map<MSC, BorderPointSet> msc2coords = new HashMap<MSC, BorderPointSet>();
 
-    /** set keeping track of all the coordinates making up the coastline */
-    private Set<Coords2D> coastLine = new HashSet<Coords2D>();
+    /** set keeping track of all the border points making up the coastline */
+    private BorderPointSet coastLine = new BorderPointSet();
 
-    /** map which remembers the nearest MSC for a given coastLine coordinate */
-    private Map<Coords2D, MSC> coords2MSC = new HashMap<Coords2D, MSC>();
+    /** ordered border rings of each MSC as rendered by the last exportToOSM(), see exportMSCPolygons() */
+    private Map<MSC, List<List<Coords2D>>> msc2borders = new HashMap<MSC, List<List<Coords2D>>>();
 
     /** this will write the actual osm map. */
     private OSMFile osmFile;
@@ -84,10 +105,44 @@ public class GenerateOSM {
      * @throws FileNotFoundException	thrown if one of the files could not be found
      */
     public GenerateOSM(File plotData, File cityData, File descFile, int resolution) throws IOException {
+        this(plotData, cityData, descFile, resolution, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor
+     * @param plotData     				PlotData file
+     * @param cityData					cityData file
+     * @param descFile					MSC description file, expects format as seen in
+     *                     				MapData/Desc_msc2010-final.txt
+     * @param resolution 				resolution of the map
+     * @param threads					number of threads for computeMapData(), the map does not depend on it
+     * @throws FileNotFoundException	thrown if one of the files could not be found
+     */
+    public GenerateOSM(File plotData, File cityData, File descFile, int resolution, int threads) throws IOException {
+        this(plotData, cityData, descFile, resolution, threads, Kernel.COSINE, DEFAULT_SPREAD);
+    }
+
+    /**
+     * Constructor
+     * @param plotData     				PlotData file
+     * @param cityData					cityData file
+     * @param descFile					MSC description file, expects format as seen in
+     *                     				MapData/Desc_msc2010-final.txt
+     * @param resolution 				resolution of the map
+     * @param threads					number of threads for computeMapData(), the map does not depend on it
+     * @param kernel					radial basis function the MSCs are splatted with
+     * @param spread					spread factor, see setSpread()
+     * @throws FileNotFoundException	thrown if one of the files could not be found
+     */
+    public GenerateOSM(File plotData, File cityData, File descFile, int resolution, int threads, Kernel kernel,
+                       double spread) throws IOException {
         this.plotData = plotData;
         this.cityData = cityData;
         this.descFile = descFile;
         this.resolution = resolution;
+        setThreads(threads);
+        setKernel(kernel);
+        setSpread(spread);
 
         labels = new int[resolution][resolution];
 
@@ -143,6 +198,7 @@ public class GenerateOSM {
         }
 
         midLevelMSCs = new ArrayList<MSC>();
+        bottomLevelMSCs = new ArrayList<MSC>();
 
         File dataDir = plotData.getParentFile();
         for (File file: dataDir.listFiles()) {
@@ -151,52 +207,81 @@ public class GenerateOSM {
                 if (!thisPlotData.exists()) {
                     continue;
                 }
-                br = new BufferedReader(new FileReader(file + "/PlotData.txt"));
-                MSC parentMSC = str2msc.get(file.getName());
+                for (MSC msc: readChildMSCs(thisPlotData, str2msc.get(file.getName()))) {
+                    midLevelMSCs.add(msc);
+                    str2msc.put(msc.getName(), msc);
+                }
 
-                line = br.readLine();
-                double areaSum = 0.0;
-                List<MSC> currMidLevelMSCs = new ArrayList<MSC>();
+                /**
+                 * The bottom level MSCs (five digit codes) are optional. They are stored in the same way one
+                 * directory further down, e.g. MSC35-XX/MSC35Axx/PlotData.txt
+                 */
+                for (File subDir: file.listFiles()) {
+                    File subPlotData = new File(subDir + "/PlotData.txt");
+                    if (subDir.isDirectory() && subPlotData.exists() && str2msc.containsKey(subDir.getName())) {
+                        for (MSC msc: readChildMSCs(subPlotData, str2msc.get(subDir.getName()))) {
+                            bottomLevelMSCs.add(msc);
+                            str2msc.put(msc.getName(), msc);
+                        }
+                    }
+                }
+            }
+        }
+        computeMapData();
+    }
 
-                while (line != null) {
-                    String[] tokens = line.split(",");
-                    String name = tokens[0];
-                    String description = desc.get(name);
 
-                    double parentRadius = Math.sqrt(parentMSC.getArea());
-                    double sideLength = Math.sqrt(2.0) * parentRadius;
+    /**
+     * Reads the PlotData.txt of the children of an MSC. Their coordinates are relative to the parent, so they are
+     * scaled to the area of the parent and moved to its position. Their areas are normalized such that together
+     * they cover the area of the parent.
+     * @param plotData  PlotData file of the children
+     * @param parentMSC parent MSC
+     * @return the children
+     * @throws IOException thrown if plotData could not be read
+     */
+    private List<MSC> readChildMSCs(File plotData, MSC parentMSC) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(plotData));
 
-                    double x = toImageSpace(Double.parseDouble(tokens[1]));
-                    double y = toImageSpace(Double.parseDouble(tokens[2]));
+        String line = br.readLine();
+        double areaSum = 0.0;
+        List<MSC> childMSCs = new ArrayList<MSC>();
 
-                    x *= sideLength / resolution;
-                    y *= sideLength / resolution;
+        while (line != null) {
+            String[] tokens = line.split(",");
+            String name = tokens[0];
+            String description = desc.get(name);
 
-                    x += parentMSC.getX();
-                    y += parentMSC.getY();
+            double parentRadius = Math.sqrt(parentMSC.getArea());
+            double sideLength = Math.sqrt(2.0) * parentRadius;
 
-                    double area = Double.parseDouble(tokens[3]);
-                    areaSum += area;
+            double x = toImageSpace(Double.parseDouble(tokens[1]));
+            double y = toImageSpace(Double.parseDouble(tokens[2]));
 
-                    MSC currMSC = new MSC(name, description, x, y, area);
-                    currMidLevelMSCs.add(currMSC);
+            x *= sideLength / resolution;
+            y *= sideLength / resolution;
 
-                    line = br.readLine();
-                }
+            x += parentMSC.getX();
+            y += parentMSC.getY();
 
-                br.close();
+            double area = Double.parseDouble(tokens[3]);
+            areaSum += area;
 
-                for (MSC msc: currMidLevelMSCs) {
-                    double factor = areaSum / parentMSC.getArea();
-                    msc.setArea(msc.getArea() / factor);
-                    midLevelMSCs.add(msc);
-                    str2msc.put(msc.getName(), msc);
-                }
-            }
+            MSC currMSC = new MSC(name, description, x, y, area);
+            childMSCs.add(currMSC);
+
+            line = br.readLine();
         }
-        computeMapData();
-    }
 
+        br.close();
+
+        for (MSC msc: childMSCs) {
+            double factor = areaSum / parentMSC.getArea();
+            msc.setArea(msc.getArea() / factor);
+        }
+
+        return childMSCs;
+    }
 
     /**
      * This function scales a given coordinate value from the range [-0.5, 0.5] to the image space. It adds 0.55 to
@@ -214,127 +299,392 @@ public class GenerateOSM {
      * the influence of MSCs on the surrounding pixels.
      */
     public void computeMapData() {
+        splatMapData();
+
+        int clippedCells = clearFrame();
+        if (clippedCells > 0) {
+            System.err.println("Warning: " + clippedCells + " cells of land at the edge of the map were cut off, "
+                    + "consider a smaller spread");
+        }
+    }
+
+    /**
+     * Splats the MSCs onto freshly allocated data grids, the first step of computeMapData().
+     */
+    void splatMapData() {
         data = new int[resolution][resolution];
         nearestMSC = new MSC[resolution][resolution];
         currMax = new double[resolution][resolution];
 
         List<MSC> mscs = midLevelMSCs.isEmpty() ? topLevelMSCs : midLevelMSCs;
 
+        /**
+         * The grid is cut into square tiles which are splatted independently. Every tile gets the MSCs overlapping
+         * it in the order of mscs, so each cell sees the same sequence of updates as in a single pass over mscs:
+         * the truncation of data and the MSC winning a tie in currMax do not depend on the number of threads.
+         */
+        int tilesPerSide = (resolution + TILE_SIZE - 1) / TILE_SIZE;
+        List<SplatTile> tiles = new ArrayList<SplatTile>();
+        for (int ti = 0; ti < tilesPerSide; ++ti) {
+            for (int tj = 0; tj < tilesPerSide; ++tj) {
+                tiles.add(new SplatTile(ti * TILE_SIZE, tj * TILE_SIZE));
+            }
+        }
+
         for (MSC msc: mscs) {
             double k = getScalingFactor(msc);
 
             double radius = Math.PI * k;
-            for (int i = (int) Math.max(0, msc.getX() - radius); i <= Math.min(resolution - 1, msc.getX() + radius); i++) {
-                for (int j = (int) Math.max(0, msc.getY() - radius); j <= Math.min(resolution - 1, msc.getY() + radius); j++) {
-                    double dist = Math.hypot(msc.getX() - i, msc.getY() - j);
-                    if (dist <= radius) {
-                        if (currMax[i][j] < getCosine(dist, k)) {
-                            currMax[i][j] = getCosine(dist, k);
-                            nearestMSC[i][j] = msc;
-                        }
-                        data[i][j] += getCosine(dist, k);
+            int iFrom = (int) Math.max(0, msc.getX() - radius);
+            int jFrom = (int) Math.max(0, msc.getY() - radius);
+            double iTo = Math.min(resolution - 1, msc.getX() + radius);
+            double jTo = Math.min(resolution - 1, msc.getY() + radius);
+            if (iFrom > iTo || jFrom > jTo) {
+                continue;
+            }
+
+            for (int ti = iFrom / TILE_SIZE; ti <= (int) iTo / TILE_SIZE; ++ti) {
+                for (int tj = jFrom / TILE_SIZE; tj <= (int) jTo / TILE_SIZE; ++tj) {
+                    tiles.get(ti * tilesPerSide + tj).add(msc, k);
+                }
+            }
+        }
+
+        runTasks(tiles);
+
+        for (SplatTile tile: tiles) {
+            dataMax = Math.max(dataMax, tile.tileMax);
+            dataMin = Math.min(dataMin, tile.tileMin);
+        }
+    }
+
+    /**
+     * Turns the outermost cells of the grid into ocean. So the ocean always surrounds the map, as labelImage()
+     * expects, and every border lies inside the grid: traceBorders() never walks along its edge, and
+     * detectImageBorders() and renderGridNodes(), which only look at the borders between cells, find all border
+     * points, from 0.5 to resolution - 1.5. Bubbles only reach the edge with a large spread.
+     * @return number of cells which were land
+     */
+    int clearFrame() {
+        int clippedCells = 0;
+        for (int k = 0; k < resolution; ++k) {
+            int[][] frameCells = {{0, k}, {resolution - 1, k}, {k, 0}, {k, resolution - 1}};
+            for (int[] cell: frameCells) {
+                if (nearestMSC[cell[0]][cell[1]] != null) {
+                    nearestMSC[cell[0]][cell[1]] = null;
+                    clippedCells++;
+                }
+            }
+        }
+        return clippedCells;
+    }
 
-                        dataMax = Math.max(dataMax, data[i][j]);
-                        dataMin = Math.min(dataMin, data[i][j]);
+    /**
+     * @param i row of the cell
+     * @param j column of the cell
+     * @return MSC owning the cell, null for the ocean
+     */
+    MSC getCell(int i, int j) {
+        return nearestMSC[i][j];
+    }
+
+    /**
+     * Runs independent tasks on a fork-join pool of the configured number of threads, or one after the other on
+     * the calling thread if that number is 1.
+     * @param tasks tasks to run, each only once
+     */
+    private void runTasks(final List<? extends RecursiveAction> tasks) {
+        if (threads == 1) {
+            for (RecursiveAction task: tasks) {
+                task.invoke();
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splats the radial basis functions of the MSCs overlapping a tile onto the cells of the tile. The extrema of
+     * data are collected per tile and merged by computeMapData().
+     */
+    private class SplatTile extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int i0;
+        private final int j0;
+
+        /** the MSCs overlapping the tile and their scaling factors, the first count entries are used */
+        private MSC[] mscs = new MSC[16];
+        private double[] scalingFactors = new double[16];
+        private int count = 0;
+
+        private double tileMax = Double.MIN_VALUE;
+        private double tileMin = Double.MAX_VALUE;
+
+        SplatTile(int i0, int j0) {
+            this.i0 = i0;
+            this.j0 = j0;
+        }
+
+        void add(MSC msc, double k) {
+            if (count == mscs.length) {
+                mscs = Arrays.copyOf(mscs, 2 * count);
+                scalingFactors = Arrays.copyOf(scalingFactors, 2 * count);
+            }
+            mscs[count] = msc;
+            scalingFactors[count++] = k;
+        }
+
+        @Override
+        protected void compute() {
+            int i1 = Math.min(resolution, i0 + TILE_SIZE) - 1;
+            int j1 = Math.min(resolution, j0 + TILE_SIZE) - 1;
+
+            for (int idx = 0; idx < count; ++idx) {
+                MSC msc = mscs[idx];
+                double k = scalingFactors[idx];
+
+                double radius = Math.PI * k;
+                double radiusSquared = radius * radius;
+                double iTo = Math.min(i1, Math.min(resolution - 1, msc.getX() + radius));
+                double jTo = Math.min(j1, Math.min(resolution - 1, msc.getY() + radius));
+                for (int i = Math.max(i0, (int) Math.max(0, msc.getX() - radius)); i <= iTo; i++) {
+                    double dx = msc.getX() - i;
+                    for (int j = Math.max(j0, (int) Math.max(0, msc.getY() - radius)); j <= jTo; j++) {
+                        double dy = msc.getY() - j;
+                        double distSquared = dx * dx + dy * dy;
+                        if (distSquared <= radiusSquared) {
+                            double value = kernel.valueAt(distSquared / radiusSquared);
+                            if (currMax[i][j] < value) {
+                                currMax[i][j] = value;
+                                nearestMSC[i][j] = msc;
+                            }
+                            data[i][j] += value;
+
+                            tileMax = Math.max(tileMax, data[i][j]);
+                            tileMin = Math.min(tileMin, data[i][j]);
+                        }
                     }
                 }
             }
         }
     }
 
+    /**
+     * Sets the number of threads used by the next computeMapData() and labelImage(), the constructor already runs
+     * computeMapData() once.
+     * @param threads number of threads, at least 1
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, got " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the radial basis function used by the next computeMapData(), the constructor already runs it once with
+     * the kernel it was given.
+     * @param kernel radial basis function
+     */
+    public void setKernel(Kernel kernel) {
+        this.kernel = kernel;
+    }
+
+    /**
+     * Sets the spread factor used by getScalingFactor() from the next computeMapData() on, the constructor already
+     * runs it once with the spread it was given.
+     * @param spread factor between the areas of the MSCs and the areas of their bubbles, larger than 0
+     */
+    public void setSpread(double spread) {
+        if (!(spread > 0.0)) {
+            throw new IllegalArgumentException("spread must be larger than 0, got " + spread);
+        }
+        this.spread = spread;
+    }
+
     public double getScalingFactor(MSC msc) {
  		/**
  		 * This behaves as a scaling factor for the size of the MSC bubbles,
- 		 * currently it is still chosen empirically depending on the desired output.
+ 		 * currently the spread is still chosen empirically depending on the desired output.
  		 * Needs to be adjusted for different datasets.
  		 * TODO: Figure out on what exactly this depends
  		 */
-     	double factor = 4.5;
-        return Math.sqrt(1.0e6 / (topLevelMSCs.size() * Math.pow(Math.PI, 3)) * factor * msc.getArea() / areaMax);
+        return Math.sqrt(1.0e6 / (topLevelMSCs.size() * Math.pow(Math.PI, 3)) * spread * msc.getArea() / areaMax);
     }
 
     /**
-     * This implements a radial basis function.
-     * @param dist Distance to the MSC center
-     * @param k    scaling factor computed by getScalingFactor()
-     * @return     cos(dist / k) + 1.0
+     * The following accessors expose the intermediate results of the stages of exportToOSM(), so that
+     * the stages can be run and benchmarked one by one (see GenerateOSMBenchmark in the Benchmarks module).
      */
-    public double getCosine(double dist, double k) {
-        if (Math.PI * k < Math.abs(dist)) {
-            return 0.0;
-        }
-        return Math.cos(dist / k) + 1.0;
+    Map<MSC, BorderPointSet> getBorderCoords() {
+        return msc2coords;
+    }
+
+    BorderPointSet getCoastLine() {
+        return coastLine;
+    }
+
+    void resetColoring() {
+        coloring = new int[topLevelMSCs.size()];
     }
 
     /**
      * This method will be used later for detection of lakes. It assigns each contiguous sea region a different
-     * label, where only the surrounding ocean will have the label 0 in th  e end.
+     * label, where only the surrounding ocean will have the label 0 in the end. Water cells are connected to their
+     * 8 neighbours, the ocean is the region containing the corners (0, 0) and (resolution - 1, 0); land cells get
+     * Integer.MAX_VALUE.
+     *
+     * The regions are found by union-find in two passes over the cells, numbered i * resolution + j: the first
+     * pass unites every water cell with its water neighbours in the row above and to the left, linking the larger
+     * root to the smaller one, so the root of a region is its smallest cell. The second pass labels every cell
+     * with its root. Both passes run in parallel on horizontal strips; in between, the regions are united across
+     * the seams of the strips.
      */
-    private void labelImage() {
-        /** initializes the label matrix to infinity  */
-        for (int[] row: labels) {
-            Arrays.fill(row, Integer.MAX_VALUE);
+    void labelImage() {
+        if (parents == null || parents.length != resolution * resolution) {
+            parents = new int[resolution * resolution];
         }
 
-
-        /**
-         * forward scan through the image. for each water pixel the 4 backward neighbors are considered and it
-         * assumes the minimum value of them
-         */
-        for (int i = 0; i < resolution; ++i) {
-            for (int j = 0; j < resolution; ++j) {
-                /** nearestMSC = null means this is a water node */
-                if (nearestMSC[i][j] == null) {
-                    /**
-                     * this is another initialization, only changing water nodes. The previous setting to infinity
-                     * was necessary in order to never consider the label of land nodes.
-                     */
-                    labels[i][j] = i * resolution + j;
+        int stripCount = Math.min(threads, resolution);
+        List<RecursiveAction> strips = new ArrayList<RecursiveAction>();
+        for (int strip = 0; strip < stripCount; ++strip) {
+            final int from = (int) ((long) strip * resolution / stripCount);
+            final int to = (int) ((long) (strip + 1) * resolution / stripCount);
+            strips.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    uniteWaterCells(from, to);
                 }
-            }
+            });
         }
-        labels[0][0] = labels[resolution-1][0] = 0;
+        runTasks(strips);
 
-        for (int i = resolution - 1; i >= 0; --i) {
+        for (int strip = 1; strip < stripCount; ++strip) {
+            int i = (int) ((long) strip * resolution / stripCount);
             for (int j = 0; j < resolution; ++j) {
-                if (nearestMSC[i][j] == null) {
-                    boolean done = false;
-                    for (int x = Math.min(i+1, resolution - 1); x >= Math.max(i-1, 0) && !done; --x) {
-                        for (int y = Math.max(j-1, 0); y <= Math.min(j+1, resolution-1) && !done; ++y) {
-                            if (x == i && y == j) {
-                                done = true;
-                                continue;
-                            }
-                            labels[i][j] = Math.min(labels[i][j], labels[x][y]);
+                if (isWater(i, j)) {
+                    for (int y = Math.max(j-1, 0); y <= Math.min(j+1, resolution-1); ++y) {
+                        if (isWater(i-1, y)) {
+                            unite(i * resolution + j, (i-1) * resolution + y);
                         }
                     }
                 }
             }
         }
 
-        /**
-         * backward scan through the image. for each water pixel the 4 forward neighbors are  considered and it
-         * assumes the minimum value of them. Almost identical to the previous loop except that the initialization is
-         * not necessary anymore
-         */
-        for (int i = 0; i < resolution; ++i) {
-            for (int j = resolution -1; j >= 0; --j) {
-                if (nearestMSC[i][j] == null) {
-                    boolean done = false;
-                    for (int x = Math.max(i-1, 0); x <= Math.min(i+1, resolution-1) && !done; ++x) {
-                        for (int y = Math.min(j+1, resolution - 1); y >= Math.max(j-1, 0) && !done; --y) {
-                            if (x == i && y == j) {
-                                done = true;
-                                continue;
-                            }
-                            labels[i][j] = Math.min(labels[i][j], labels[x][y]);
+        /** both corners belong to the ocean, whose root is then 0 */
+        unite(0, (resolution-1) * resolution);
+
+        strips.clear();
+        for (int strip = 0; strip < stripCount; ++strip) {
+            final int from = (int) ((long) strip * resolution / stripCount);
+            final int to = (int) ((long) (strip + 1) * resolution / stripCount);
+            strips.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    for (int i = from; i < to; ++i) {
+                        for (int j = 0; j < resolution; ++j) {
+                            labels[i][j] = isWater(i, j) ? findRoot(i * resolution + j) : Integer.MAX_VALUE;
                         }
                     }
                 }
+            });
+        }
+        runTasks(strips);
+    }
+
+    /**
+     * @return true if cell (i, j) is water. The corners (0, 0) and (resolution - 1, 0) always are, they seed the
+     * ocean.
+     */
+    private boolean isWater(int i, int j) {
+        return nearestMSC[i][j] == null || (j == 0 && (i == 0 || i == resolution - 1));
+    }
+
+    /**
+     * First pass of labelImage() on the rows from (inclusive) to to (exclusive): unites every water cell with its
+     * water neighbours in the previous row and column of the strip. If the neighbour above is water, the other
+     * three are already in its region.
+     */
+    private void uniteWaterCells(int from, int to) {
+        for (int i = from; i < to; ++i) {
+            for (int j = 0; j < resolution; ++j) {
+                if (!isWater(i, j)) {
+                    continue;
+                }
+
+                int idx = i * resolution + j;
+                boolean hasUp = i > from;
+                if (hasUp && isWater(i-1, j)) {
+                    parents[idx] = find(idx - resolution);
+                    continue;
+                }
+
+                parents[idx] = idx;
+                if (j > 0 && isWater(i, j-1)) {
+                    parents[idx] = find(idx - 1);
+                } else if (hasUp && j > 0 && isWater(i-1, j-1)) {
+                    parents[idx] = find(idx - resolution - 1);
+                }
+                if (hasUp && j+1 < resolution && isWater(i-1, j+1)) {
+                    unite(idx, idx - resolution + 1);
+                }
             }
         }
     }
 
+    /**
+     * @return root of the region of water cell idx, halving the path to it
+     */
+    private int find(int idx) {
+        while (parents[idx] != idx) {
+            parents[idx] = parents[parents[idx]];
+            idx = parents[idx];
+        }
+        return idx;
+    }
+
+    /**
+     * @return root of the region of water cell idx without modifying the parents, so that strips can share them
+     */
+    private int findRoot(int idx) {
+        while (parents[idx] != idx) {
+            idx = parents[idx];
+        }
+        return idx;
+    }
+
+    /**
+     * Unites the regions of two water cells, the smaller root becomes the root of both.
+     */
+    private void unite(int idx1, int idx2) {
+        int root1 = find(idx1);
+        int root2 = find(idx2);
+        if (root1 < root2) {
+            parents[root2] = root1;
+        } else if (root2 < root1) {
+            parents[root1] = root2;
+        }
+    }
+
     private MSC getParentMSC (MSC child) {
         if (child == null) {
             return null;
@@ -363,120 +713,111 @@ public class GenerateOSM {
         return parent;
     }
 
-    private void detectImageBorders() {
+    void detectImageBorders() {
+        /** start from scratch, so that the stage can be repeated (see the Benchmarks module) */
+        msc2coords.clear();
+        coastLine = new BorderPointSet();
+
         /** loop through the whole data set */
         for (int i = 0; i < resolution - 1; i++) {
             for (int j = 0; j < resolution - 1; j++) {
                 /** detect borders in x direction */
                 if (nearestMSC[i][j] != nearestMSC[i+1][j]) {
-                    /** allocate space if not yet existing */
-                    if (!msc2coords.containsKey(nearestMSC[i][j])) {
-                        msc2coords.put(nearestMSC[i][j], new HashSet<Coords2D>());
-                    }
-
-                    /** allocate space if not yet existing */
-                    if (!msc2coords.containsKey(nearestMSC[i+1][j])) {
-                        msc2coords.put(nearestMSC[i+1][j], new HashSet<Coords2D>());
-                    }
-
                     /**
-                     * Add respective coordinate to both lists. We need to multiply both i and j by 2 here,
-                     * so that we can take "middle elements" and still work with integers
+                     * We need to multiply both i and j by 2 here, so that we can take "middle elements" and still
+                     * work with integers
                      */
-                    msc2coords.get(nearestMSC[i][j]).  add(new Coords2D(i+0.5, j));
-                    msc2coords.get(nearestMSC[i+1][j]).add(new Coords2D(i+0.5, j));
-
-                    MSC parent1 = getParentMSC(nearestMSC[i][j]);
-                    MSC parent2 = getParentMSC(nearestMSC[i+1][j]);
-
-                    if (parent1 != parent2) {
-                        /** allocate space if not yet existing */
-                        if (!msc2coords.containsKey(parent1)) {
-                            msc2coords.put(parent1, new HashSet<Coords2D>());
-                        }
-
-                        /** allocate space if not yet existing */
-                        if (!msc2coords.containsKey(parent2)) {
-                            msc2coords.put(parent2, new HashSet<Coords2D>());
-                        }
-
-                        /**
-                         * Add respective coordinate to both lists. We need to multiply both i and j by 2 here,
-                         * so that we can take "middle elements" and still work with integers
-                         */
-                        msc2coords.get(parent1).add(new Coords2D(i+0.5, j));
-                        msc2coords.get(parent2).add(new Coords2D(i+0.5, j));
-                    }
-
-
-                    /** Coastline detection */
-                    if (nearestMSC[i][j] == null || nearestMSC[i+1][j] == null) {
-                        coastLine. add(new Coords2D(i+0.5, j));
-                        coords2MSC.put(new Coords2D(i+0.5, j),
-                                nearestMSC[i][j] != null ? nearestMSC[i][j] : nearestMSC[i+1][j]);
-                        if (coords2MSC.get(new Coords2D(i+0.5, j)) == null) {
-                            System.err.printf("Could not resolve MSC at (%.1f, %d)\n", i+0.5, j);
-                        }
-                    }
-
-                    /** printing the node, the id is 2*i+1, 2*j in base 2 * resolution */
-                    osmFile.addGridNode(i + 0.5, j);
+                    addBorderPoint(nearestMSC[i][j], nearestMSC[i+1][j], getGridNodeID(2*i + 1, 2*j));
                 }
 
                 /** detect borders in y direction */
                 if (nearestMSC[i][j] != nearestMSC[i][j+1]) {
-                    /** allocate space if not yet existing */
-                    if (!msc2coords.containsKey(nearestMSC[i][j])) {
-                        msc2coords.put(nearestMSC[i][j], new HashSet<Coords2D>());
-                    }
-
-                    /** allocate space if not yet existing */
-                    if (!msc2coords.containsKey(nearestMSC[i][j+1])) {
-                        msc2coords.put(nearestMSC[i][j+1], new HashSet<Coords2D>());
-                    }
+                    addBorderPoint(nearestMSC[i][j], nearestMSC[i][j+1], getGridNodeID(2*i, 2*j + 1));
+                }
+            }
+        }
+    }
 
-                    /** Add respective coordinate to both lists. */
-                    msc2coords.get(nearestMSC[i][j]).  add(new Coords2D(i, j+0.5));
-                    msc2coords.get(nearestMSC[i][j+1]).add(new Coords2D(i, j+0.5));
+    /**
+     * Writes the grid nodes of the border points which are kept, in the same order as detectImageBorders() finds
+     * them.
+     * @param keptPoints ids of the kept border points, see simplifyBorders()
+     */
+    private void renderGridNodes(BitSet keptPoints) {
+        for (int i = 0; i < resolution - 1; i++) {
+            for (int j = 0; j < resolution - 1; j++) {
+                /** printing the node, the id is 2*i+1, 2*j in base 2 * resolution */
+                if (nearestMSC[i][j] != nearestMSC[i+1][j] && keptPoints.get(getGridNodeID(2*i + 1, 2*j))) {
+                    osmFile.addGridNode(i + 0.5, j);
+                }
 
-                    MSC parent1 = getParentMSC(nearestMSC[i][j]);
-                    MSC parent2 = getParentMSC(nearestMSC[i][j+1]);
+                /** printing the node, the id is 2*i, 2*j+1 in base 2 * resolution */
+                if (nearestMSC[i][j] != nearestMSC[i][j+1] && keptPoints.get(getGridNodeID(2*i, 2*j + 1))) {
+                    osmFile.addGridNode(i, j + 0.5);
+                }
 
-                    if (parent1 != parent2) {
-                        /** allocate space if not yet existing */
-                        if (!msc2coords.containsKey(parent1)) {
-                            msc2coords.put(parent1, new HashSet<Coords2D>());
-                        }
+                /** printing the center of the square, the id is 2*i+1, 2*j+1 in base 2 * resolution */
+                if (keptPoints.get(getGridNodeID(2*i + 1, 2*j + 1))) {
+                    osmFile.addGridNode(i + 0.5, j + 0.5);
+                }
+            }
+        }
+    }
 
-                        /** allocate space if not yet existing */
-                        if (!msc2coords.containsKey(parent2)) {
-                            msc2coords.put(parent2, new HashSet<Coords2D>());
-                        }
+    /**
+     * Adds a point on the border between two neighbouring cells to the borders of both MSCs, of their parents if
+     * those differ and to the coastline if one of them is the ocean.
+     * @param msc1 MSC of the first cell
+     * @param msc2 MSC of the second cell
+     * @param id   id of the point, see getGridNodeID()
+     */
+    private void addBorderPoint(MSC msc1, MSC msc2, int id) {
+        getBorderPoints(msc1).add(id);
+        getBorderPoints(msc2).add(id);
 
-                        /**
-                         * Add respective coordinate to both lists. We need to multiply both i and j by 2 here,
-                         * so that we can take "middle elements" and still work with integers
-                         */
-                        msc2coords.get(parent1).add(new Coords2D(i, j+0.5));
-                        msc2coords.get(parent2).add(new Coords2D(i, j+0.5));
-                    }
+        MSC parent1 = getParentMSC(msc1);
+        MSC parent2 = getParentMSC(msc2);
 
+        if (parent1 != parent2) {
+            getBorderPoints(parent1).add(id);
+            getBorderPoints(parent2).add(id);
+        }
 
-                    /** Coastline detection */
-                    if (nearestMSC[i][j] == null || nearestMSC[i][j+1] == null) {
-                        coastLine. add(new Coords2D(i, j+0.5));
-                        coords2MSC.put(new Coords2D(i, j+0.5),
-                                nearestMSC[i][j] != null ? nearestMSC[i][j] : nearestMSC[i][j+1]);
-                        if (coords2MSC.get(new Coords2D(i, j+0.5)) == null) {
-                            System.err.printf("Could not resolve MSC at (%d, %.1f)\n", i, j + 0.5);
-                        }
-                    }
+        /** Coastline detection */
+        if (msc1 == null || msc2 == null) {
+            coastLine.add(id);
+        }
+    }
 
-                    /** printing the node, the id is 2*i, 2*j+1 in base 2 * resolution */
-                    osmFile.addGridNode(i, j + 0.5);
-                }
-            }
+    /**
+     * @return the border points of an MSC, allocated if not yet existing
+     */
+    private BorderPointSet getBorderPoints(MSC msc) {
+        BorderPointSet borderPoints = msc2coords.get(msc);
+        if (borderPoints == null) {
+            borderPoints = new BorderPointSet();
+            msc2coords.put(msc, borderPoints);
         }
+        return borderPoints;
+    }
+
+    /**
+     * Border points lie on the corners and on the middle of the edges of the cells, so they are identified by their
+     * doubled coordinates (x2, y2) in base 2 * resolution. This gives the same ids as OSMFile.getGridNodeID().
+     * @param x2 2 * x
+     * @param y2 2 * y
+     * @return id of the border point (x2 / 2, y2 / 2)
+     */
+    int getGridNodeID(int x2, int y2) {
+        return 2 * resolution * x2 + y2;
+    }
+
+    /**
+     * @param id id of a border point, see getGridNodeID()
+     * @return coordinates of the border point
+     */
+    Coords2D toCoords(int id) {
+        return new Coords2D(id / (2 * resolution) / 2.0, id % (2 * resolution) / 2.0);
     }
 
     /**
@@ -563,70 +904,309 @@ public class GenerateOSM {
         br.close();
     }
 
-    private List<List<Coords2D>> orderSetOfBorderCoords(Set<Coords2D> borderCoords) {
-        return orderSetOfBorderCoords(borderCoords, true);
-    }
+    /** directions on the grid, counter clockwise: +x, +y, -x, -y */
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
 
-    private List<List<Coords2D>> orderSetOfBorderCoords(Set<Coords2D> borderCoords, boolean isCoastline) {
+    /**
+     * Traces the borders of a region with marching squares. Every border point lies between a cell inside the
+     * region and a neighbouring cell outside of it, so the trace is kept as such a pair of cells. The next border
+     * point is found by looking at the two cells ahead of the pair: the border goes straight if exactly the cell
+     * ahead of the inside one is inside, turns towards the inside cell if that is not, and towards the outside
+     * cell if both are inside. The region is taken to be 4-connected, cells which only touch diagonally are cut
+     * off from each other. This matches labelImage(), where the water is 8-connected.
+     *
+     * Where three or more MSCs meet in a square of cells, or two on its diagonals, the borders of all of them pass
+     * through the center of the square, see isJunctionSquare(). Otherwise each would only cut off its own corners
+     * and leave a gap in the middle.
+     *
+     * Each border point is visited once, so tracing is linear in the number of border points.
+     * @param borderPoints border points of the region as collected by detectImageBorders(), they are removed from
+     *                     the set while being traced
+     * @param msc          the region, either an MSC or null for all land, i.e. the coastline
+     * @return closed rings of border points, each ending with its first point, with the region on their right
+     */
+    List<List<Coords2D>> traceBorders(BorderPointSet borderPoints, MSC msc) {
+        int base = 2 * resolution;
+
+        List<List<Coords2D>> rings = new ArrayList<List<Coords2D>>();
+        while (!borderPoints.isEmpty()) {
+            /** the cells next to the first border point are (i, j) and (i, j) + dir */
+            int startID = borderPoints.first();
+            int i = startID / base / 2;
+            int j = startID % base / 2;
+            int dir = startID / base % 2 == 1 ? 0 : 1;
+
+            /** (i, j) has to be the inside cell */
+            if (!isInside(i, j, msc)) {
+                i += DX[dir];
+                j += DY[dir];
+                dir += 2;
+            }
 
-        List<List<Coords2D>> orderedBorders = new ArrayList<List<Coords2D>>();
-        while (!borderCoords.isEmpty()) {
-            List<Coords2D> currentBorder = new ArrayList<Coords2D>();
-            Coords2D startCoords = borderCoords.iterator().next();
-            currentBorder.add(startCoords);
-            borderCoords.remove(startCoords);
+            int startI = i;
+            int startJ = j;
+            int startDir = dir;
+
+            List<Coords2D> ring = new ArrayList<Coords2D>();
+            do {
+                borderPoints.remove(getGridNodeID(2*i + DX[dir], 2*j + DY[dir]));
+                ring.add(new Coords2D(i + 0.5 * DX[dir], j + 0.5 * DY[dir]));
+
+                /** walking along the border with the inside cell on the right */
+                int ahead = (dir + 3) % 4;
+                int aheadI = i + DX[ahead];
+                int aheadJ = j + DY[ahead];
+
+                /** lower left cell of the square ahead */
+                int squareI = Math.min(i, i + DX[dir]) + Math.min(0, DX[ahead]);
+                int squareJ = Math.min(j, j + DY[dir]) + Math.min(0, DY[ahead]);
+                if (isJunctionSquare(squareI, squareJ)) {
+                    ring.add(new Coords2D(squareI + 0.5, squareJ + 0.5));
+                }
 
-            /** initialize convenience variables */
-            Coords2D currCoords = startCoords;
+                if (!isInside(aheadI, aheadJ, msc)) {
+                    dir = ahead;
+                } else if (isInside(aheadI + DX[dir], aheadJ + DY[dir], msc)) {
+                    i = aheadI + DX[dir];
+                    j = aheadJ + DY[dir];
+                    dir = (dir + 1) % 4;
+                } else {
+                    i = aheadI;
+                    j = aheadJ;
+                }
+            } while (i != startI || j != startJ || dir != startDir);
 
-            /** boolean we need to check if our line is closed already */
-            boolean isClosed = false;
+            ring.add(ring.get(0));
+            rings.add(ring);
+        }
+        return rings;
+    }
 
-            while (!isClosed) {
-                /** keep track of possible next steps */
-                Coords2D nearestNeighbor = null;
-                double minDist = Double.MAX_VALUE;
+    /**
+     * Simplifies the borders traced by traceBorders() with the Douglas-Peucker algorithm. The junctions, where
+     * three or more MSCs or the ocean meet, are always kept, see isJunction(). The borders are split at them into
+     * arcs, and every arc is simplified once, no matter how many rings run along it: the two MSCs on either side,
+     * their parents or the coastline. So neighbouring MSCs keep exactly the same points on their common border
+     * and no gaps open between them.
+     *
+     * A closed arc, e.g. an island without neighbours, is split at its point farthest from the start, and each
+     * half keeps at least its farthest point. This way no ring collapses to a line.
+     * @param tolerance maximal distance in cells between a dropped point and the simplified border, see
+     *                  getTolerance(). With 0 all points are kept.
+     * @return ids of the border points which are kept, see getGridNodeID()
+     */
+    BitSet simplifyBorders(double tolerance) {
+        BitSet keptPoints = new BitSet();
+
+        /** interior points of the arcs which were already simplified */
+        BitSet visitedPoints = new BitSet();
+
+        /** every border point is on the border of at least one MSC, the ocean is not traced */
+        for (List<List<Coords2D>> rings: msc2borders.values()) {
+            for (List<Coords2D> ring: rings) {
+                /** the last point closes the ring */
+                int n = ring.size() - 1;
+                int[] ids = new int[n];
+                for (int k = 0; k < n; ++k) {
+                    ids[k] = getGridNodeID((int) (2 * ring.get(k).getX()), (int) (2 * ring.get(k).getY()));
+                }
 
-                if (isCoastline) {
-                    for (double i = -2.0; i <= 2.0; i += 0.5) {
-                        for (double j = -2.0; j <= 2.0; j += 0.5) {
-                            Coords2D coords = new Coords2D(currCoords.getX() + i, currCoords.getY() + j);
-                            if (borderCoords.contains(coords)) {
-                                if (minDist > currCoords.distanceTo(coords)) {
-                                    minDist = currCoords.distanceTo(coords);
-                                    nearestNeighbor = coords;
-                                }
-                            }
-                        }
+                if (tolerance <= 0) {
+                    for (int id: ids) {
+                        keptPoints.set(id);
                     }
-                } else {
-                    for (Coords2D coords: borderCoords) {
-                        if (minDist > currCoords.distanceTo(coords)) {
-                            minDist = currCoords.distanceTo(coords);
-                            nearestNeighbor = coords;
+                    continue;
+                }
+
+                List<Integer> fixed = new ArrayList<Integer>();
+                for (int k = 0; k < n; ++k) {
+                    if (isJunction(ids[k])) {
+                        fixed.add(k);
+                    }
+                }
+
+                /** a ring without any junctions starts and ends at its smallest id, whichever ring traces it */
+                if (fixed.isEmpty()) {
+                    int min = 0;
+                    for (int k = 1; k < n; ++k) {
+                        if (ids[k] < ids[min]) {
+                            min = k;
                         }
                     }
+                    fixed.add(min);
                 }
 
-                if (minDist >= 5.0 && minDist >= currCoords.distanceTo(startCoords)) {
-                    nearestNeighbor = startCoords;
-                    isClosed = true;
+                for (int f = 0; f < fixed.size(); ++f) {
+                    int from = fixed.get(f);
+                    int to = f + 1 < fixed.size() ? fixed.get(f + 1) : fixed.get(0) + n;
+                    keptPoints.set(ids[from]);
+
+                    if (to - from < 2 || visitedPoints.get(ids[(from + 1) % n])) {
+                        continue;
+                    }
+                    for (int k = from + 1; k < to; ++k) {
+                        visitedPoints.set(ids[k % n]);
+                    }
+
+                    if (ids[from] == ids[to % n]) {
+                        int farthest = getFarthestPoint(ring, n, from, to, ring.get(from), ring.get(from));
+                        keptPoints.set(ids[farthest % n]);
+                        simplifyArc(ring, ids, from, farthest, tolerance, true, keptPoints);
+                        simplifyArc(ring, ids, farthest, to, tolerance, true, keptPoints);
+                    } else {
+                        simplifyArc(ring, ids, from, to, tolerance, false, keptPoints);
+                    }
                 }
+            }
+        }
+        return keptPoints;
+    }
+
+    /**
+     * Douglas-Peucker on the arc of a ring from point index from to index to, both already kept. Indices past the
+     * end of the ring wrap around.
+     * @param forced true if the farthest point is to be kept even if it is within the tolerance
+     */
+    private void simplifyArc(List<Coords2D> ring, int[] ids, int from, int to, double tolerance, boolean forced,
+                             BitSet keptPoints) {
+        int n = ids.length;
+
+        /** pending sub-arcs as pairs of indices, an explicit stack as arcs can be long */
+        Deque<Integer> pending = new ArrayDeque<Integer>();
+        pending.push(to);
+        pending.push(from);
+
+        while (!pending.isEmpty()) {
+            int start = pending.pop();
+            int end = pending.pop();
+            if (end - start < 2) {
+                continue;
+            }
+
+            Coords2D a = ring.get(start % n);
+            Coords2D b = ring.get(end % n);
+            int farthest = getFarthestPoint(ring, n, start, end, a, b);
+            if (forced || ring.get(farthest % n).distanceToSegment(a, b) > tolerance) {
+                keptPoints.set(ids[farthest % n]);
+                pending.push(end);
+                pending.push(farthest);
+                pending.push(farthest);
+                pending.push(start);
+            }
+            forced = false;
+        }
+    }
+
+    /**
+     * @return index of the point strictly between start and end which is farthest from the segment from a to b
+     */
+    private int getFarthestPoint(List<Coords2D> ring, int n, int start, int end, Coords2D a, Coords2D b) {
+        int farthest = start + 1;
+        double maxDist = -1.0;
+        for (int k = start + 1; k < end; ++k) {
+            double dist = ring.get(k % n).distanceToSegment(a, b);
+            if (dist > maxDist) {
+                maxDist = dist;
+                farthest = k;
+            }
+        }
+        return farthest;
+    }
+
+    /**
+     * A border point is a junction if it is the center of a junction square or lies on the edge of one, see
+     * isJunctionSquare(). Between junctions all rings passing a point run along the same points.
+     * @param id id of a border point, see getGridNodeID()
+     */
+    private boolean isJunction(int id) {
+        int x2 = id / (2 * resolution);
+        int y2 = id % (2 * resolution);
+
+        if (x2 % 2 == 1 && y2 % 2 == 1) {
+            return true;
+        } else if (x2 % 2 == 1) {
+            /** the squares below and above of (x2 / 2, y2 / 2) */
+            return isJunctionSquare(x2 / 2, y2 / 2 - 1) || isJunctionSquare(x2 / 2, y2 / 2);
+        } else {
+            /** the squares left and right of (x2 / 2, y2 / 2) */
+            return isJunctionSquare(x2 / 2 - 1, y2 / 2) || isJunctionSquare(x2 / 2, y2 / 2);
+        }
+    }
+
+    /**
+     * @return true if the square of the cells (i, j) to (i + 1, j + 1) contains three or more different MSCs
+     * (counting the ocean), or two on its diagonals. The borders through it meet at its center.
+     */
+    private boolean isJunctionSquare(int i, int j) {
+        MSC a = getCellMSC(i, j);
+        MSC b = getCellMSC(i + 1, j);
+        MSC c = getCellMSC(i, j + 1);
+        MSC d = getCellMSC(i + 1, j + 1);
+
+        if (a == b) {
+            return c != d && c != a && d != a;
+        } else if (c == d) {
+            return c != a && c != b;
+        } else {
+            /** a saddle if a == d and b == c, otherwise there is a third MSC */
+            return a != c || b != d;
+        }
+    }
+
+    /**
+     * @return MSC of cell (i, j), null for the ocean and outside of the grid
+     */
+    private MSC getCellMSC(int i, int j) {
+        if (i < 0 || i >= resolution || j < 0 || j >= resolution) {
+            return null;
+        }
+        return nearestMSC[i][j];
+    }
 
-                borderCoords.remove(nearestNeighbor);
-                currentBorder.add(nearestNeighbor);
-        //        System.err.printf("(%.5f, %.5f)\n", nearestNeighbor.x / resolution, nearestNeighbor.y / resolution);
-                currCoords = nearestNeighbor;
+    /**
+     * @param zoom zoom level of the tiles rendered from the map
+     * @return tolerance for simplifyBorders() of half a pixel at the zoom level. The map spans one degree of
+     * latitude and longitude, a tile 360 / 2^zoom degrees in 256 pixels.
+     */
+    public double getTolerance(int zoom) {
+        return 0.5 * resolution * 360.0 / (256.0 * Math.pow(2, zoom));
+    }
+
+    /**
+     * @param msc an MSC or null for all land
+     * @return true if cell (i, j) belongs to the MSC or one of its children
+     */
+    private boolean isInside(int i, int j, MSC msc) {
+        if (i < 0 || i >= resolution || j < 0 || j >= resolution) {
+            return false;
+        }
 
+        MSC cell = nearestMSC[i][j];
+        if (msc == null || cell == msc) {
+            return cell != null;
+        }
+        return cell != null && cell.getLevel() > msc.getLevel() && getParentMSC(cell) == msc;
+    }
 
+    /**
+     * @param ring       closed ring of border points
+     * @param keptPoints ids of the kept border points, see simplifyBorders()
+     * @return the kept points of the ring, again as a closed ring
+     */
+    private List<Coords2D> getKeptPoints(List<Coords2D> ring, BitSet keptPoints) {
+        List<Coords2D> keptRing = new ArrayList<Coords2D>();
+        for (int k = 0; k < ring.size() - 1; ++k) {
+            Coords2D coords = ring.get(k);
+            if (keptPoints.get(getGridNodeID((int) (2 * coords.getX()), (int) (2 * coords.getY())))) {
+                keptRing.add(coords);
             }
-            orderedBorders.add(currentBorder);
         }
-        return orderedBorders;
+        keptRing.add(keptRing.get(0));
+        return keptRing;
     }
 
-    private void orderAndOrientateCoastline() {
-        List<List<Coords2D>> orderedCoastline = orderSetOfBorderCoords(coastLine, true);
+    private void orderAndOrientateCoastline(List<List<Coords2D>> orderedCoastline, BitSet keptPoints) {
 
         /** serves as a code id */
         int coastCounter = 0;
@@ -636,18 +1216,15 @@ public class GenerateOSM {
              * This is required to find out the orientation of the coastline. Idea taken from
              * http://stackoverflow.com/a/1165943
              */
-            int signedArea = 0;
-
-            int xCoord = (int) currCoast.get(0).getX();
-            int yCoord = (int) currCoast.get(0).getY();
-
-            int minLabel = Integer.MAX_VALUE;
+            double signedArea = 0;
 
-            for (int x = Math.max(0, xCoord-2); x <= Math.min(resolution-1, xCoord+2); x++) {
-                for (int y = Math.max(0, yCoord-2); y <= Math.min(resolution-1, yCoord+2); y++) {
-                    minLabel = Math.min(minLabel, labels[x][y]);
-                }
-            }
+            /**
+             * The first point lies between a land cell and a water cell. Land has the label Integer.MAX_VALUE and the
+             * ocean the label 0, so the coast belongs to a lake if the smaller label is neither.
+             */
+            Coords2D first = currCoast.get(0);
+            int minLabel = Math.min(labels[(int) first.getX()][(int) first.getY()],
+                    labels[(int) Math.ceil(first.getX())][(int) Math.ceil(first.getY())]);
 
             boolean isLake = (minLabel != 0);
 
@@ -659,11 +1236,13 @@ public class GenerateOSM {
 
             /**
              * When we closed our loop we need to look at the sign of our area to check if we need to flip the order
-             * of the nodes. Finally we write to the file.
+             * of the nodes. traceBorders() keeps the land on the right, so this flips the coasts of lakes, which
+             * surround water. Finally we write to the file.
              */
             if (signedArea < 0) {
                 Collections.reverse(currCoast);
             }
+            currCoast = getKeptPoints(currCoast, keptPoints);
 
             /**
              * the following steps are necessary to meet OSM's requirement that a way should not consist of more than
@@ -706,7 +1285,7 @@ public class GenerateOSM {
         }
     }
 
-    private void renderCountryBorders() {
+    private void renderCountryBorders(BitSet keptPoints) {
         /**
          * This part is responsible to render the countries and corresponding borders. Of course,
          * we need to loop through all MSCs for this.
@@ -716,27 +1295,8 @@ public class GenerateOSM {
             /** we disregard null, i.e. the ocean */
             if (msc != null) {
 
-                /**
-                 * We need to consider the nodes in the appropriate order, that is walking around the circle counter
-                 * clockwise. To do so we at first need to find a point inside a given country. Since they have a
-                 * somewhat convex shape, taking the average is a good starting point.
-                 */
-                Coords2D avg = new Coords2D();
-                for (Coords2D foo: msc2coords.get(msc)) {
-                    avg.setX(avg.getX() + foo.getX());
-                    avg.setY(avg.getY() + foo.getY());
-                }
-
-                avg.setX(avg.getX() / msc2coords.get(msc).size());
-                avg.setY(avg.getY() / msc2coords.get(msc).size());
-
-                /**
-                 * Then we proceed to sort the list according to our own comparison criteria. It will look at the
-                 * angle a line through a given point and the "origin" has with respect to the x-axis and sorts in
-                 * increasing order.
-                 */
-                HashSet<Coords2D> currSet = msc2coords.get(msc);
-                List<List<Coords2D>> orderedBorders = orderSetOfBorderCoords(currSet);
+                /** the borders are already in the appropriate order, see traceBorders() */
+                List<List<Coords2D>> orderedBorders = msc2borders.get(msc);
 
                 /**
                  * Finally we print the whole way to the file. It includes all necessary nodes and the required key
@@ -748,7 +1308,7 @@ public class GenerateOSM {
                 for (List<Coords2D> currList: orderedBorders) {
                     osmFile.addWay(msc.getName() + ++counter);
 
-                    for (Coords2D cursor: currList) {
+                    for (Coords2D cursor: getKeptPoints(currList, keptPoints)) {
                         osmFile.addGridNodeReference(cursor.getX(), cursor.getY());
                     }
 
@@ -771,7 +1331,7 @@ public class GenerateOSM {
      * This is relevant for the coloring later on.
      * @param isMidLevelGrid indicates whether the underlying grid consists of mid-level MSCs
      */
-    private void createGraph(boolean isMidLevelGrid) {
+    void createGraph(boolean isMidLevelGrid) {
         int N = topLevelMSCs.size();
         graph = new int[N][N];
         degrees = new int[N];
@@ -802,7 +1362,7 @@ public class GenerateOSM {
      * with the least id after removing the colors from its neighbors. Unallocated nodes have
      * a color id of 0 until they are considered. The result is stored in the coloring[] array.
      */
-    private void colorGraph() {
+    void colorGraph() {
         int maxDegree = 0;
         for (int deg: degrees) {
             maxDegree = Math.max(maxDegree, deg);
@@ -869,12 +1429,38 @@ public class GenerateOSM {
 
 
     public void exportToOSM(File osmOutputFile) throws IOException {
+        exportToOSM(osmOutputFile, 0.0);
+    }
+
+    /**
+     * Like exportToOSM(File), but with simplified borders and coastlines, see simplifyBorders(). Only the grid
+     * nodes left on them are written.
+     * @param osmOutputFile output file
+     * @param tolerance     tolerance of the simplification in cells, see getTolerance() for the tolerance of a zoom
+     *                      level
+     * @throws IOException  thrown in case osmOutputFile could not be written
+     */
+    public void exportToOSM(File osmOutputFile, double tolerance) throws IOException {
         osmFile = new OSMFile(osmOutputFile, resolution);
 
         labelImage();
 
         detectImageBorders();
 
+        /** the borders are traced and simplified first, so that only the grid nodes left on them are written */
+        List<List<Coords2D>> orderedCoastline = traceBorders(coastLine, null);
+
+        msc2borders.clear();
+        for (Map.Entry<MSC, BorderPointSet> entry: msc2coords.entrySet()) {
+            /** we disregard null, i.e. the ocean */
+            if (entry.getKey() != null) {
+                msc2borders.put(entry.getKey(), traceBorders(entry.getValue(), entry.getKey()));
+            }
+        }
+
+        BitSet keptPoints = simplifyBorders(tolerance);
+        renderGridNodes(keptPoints);
+
         /**
          * Add capitals for each MSC to the map. id, lat and lon are required for obvious reasons,
          * visible and version were added to be able to analyze the map in JOSM
@@ -903,15 +1489,16 @@ public class GenerateOSM {
             renderCitiesToMap();
         }
 
-        createGraph(false);
-        coloring = new int[topLevelMSCs.size()];
+        /** the countries are the top level MSCs, also on maps of mid level MSCs */
+        createGraph(!midLevelMSCs.isEmpty());
+        resetColoring();
         colorGraph();
 
         initRusinColoring();
 
-        orderAndOrientateCoastline();
+        orderAndOrientateCoastline(orderedCoastline, keptPoints);
 
-        renderCountryBorders();
+        renderCountryBorders(keptPoints);
 
         osmFile.close();
     }
@@ -964,6 +1551,204 @@ public class GenerateOSM {
         pw.close();
     }
 
+    /**
+     * Computes the owners of the cells of the bottom level, i.e. the five digit MSCs. Their grid is scale times
+     * finer than the map, so the small bottom level MSCs still cover a few cells each. The area of every mid level
+     * MSC is divided among its children: a cell goes to the child with the smallest distance relative to its
+     * scaling factor, which is the child with the largest value of the kernel wherever that is not 0. Cells of mid level
+     * MSCs without children keep the mid level MSC.
+     * @param  scale factor between the resolution of the bottom level and of the map
+     * @return owner of each cell of the bottom level grid
+     */
+    MSC[][] computeBottomLevel(int scale) {
+        /** centers and 1 / k^2 of the bottom level MSCs in the fine grid, grouped by their parents */
+        int n = bottomLevelMSCs.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        double[] weights = new double[n];
+        Map<MSC, List<Integer>> parent2children = new HashMap<MSC, List<Integer>>();
+        for (int idx = 0; idx < n; idx++) {
+            MSC msc = bottomLevelMSCs.get(idx);
+            double k = getScalingFactor(msc) * scale;
+            xs[idx] = msc.getX() * scale;
+            ys[idx] = msc.getY() * scale;
+            weights[idx] = 1.0 / (k * k);
+
+            MSC parentMSC = getParentMSC(msc);
+            if (!parent2children.containsKey(parentMSC)) {
+                parent2children.put(parentMSC, new ArrayList<Integer>());
+            }
+            parent2children.get(parentMSC).add(idx);
+        }
+
+        int fineResolution = resolution * scale;
+        MSC[][] fineMSC = new MSC[fineResolution][fineResolution];
+        for (int i = 0; i < fineResolution; i++) {
+            for (int j = 0; j < fineResolution; j++) {
+                /** a fine cell i is located at i / scale in the map, the cell of the map containing it is the parent */
+                MSC parentMSC = nearestMSC[getMapCell(i, scale)][getMapCell(j, scale)];
+                fineMSC[i][j] = parentMSC;
+
+                List<Integer> children = parent2children.get(parentMSC);
+                if (children == null) {
+                    continue;
+                }
+
+                double minDist = Double.MAX_VALUE;
+                for (int idx: children) {
+                    double dx = xs[idx] - i;
+                    double dy = ys[idx] - j;
+                    double dist = (dx * dx + dy * dy) * weights[idx];
+                    if (dist < minDist) {
+                        minDist = dist;
+                        fineMSC[i][j] = bottomLevelMSCs.get(idx);
+                    }
+                }
+            }
+        }
+
+        return fineMSC;
+    }
+
+    /**
+     * @return the cell of the map containing the cell fineCell of a grid scale times finer
+     */
+    private int getMapCell(int fineCell, int scale) {
+        return Math.min(resolution - 1, (fineCell + scale / 2) / scale);
+    }
+
+    /**
+     * Binary counterpart of exportMSCGrid(). It writes all levels into a single MSCGrid.bin which
+     * the WebService memory-maps on startup, see MSCGridFile for the format. For the yearly and cumulative
+     * maps the file is placed in WebContent/data/&lt;dataset&gt;/ of the WebService. If there are bottom level
+     * MSCs, they are stored as third level at 4 times the resolution of the map.
+     * @param  gridFile    output file
+     * @throws IOException thrown in case gridFile could not be written
+     */
+    public void exportMSCGridBinary (File gridFile) throws IOException {
+        exportMSCGridBinary(gridFile, 4);
+    }
+
+    /**
+     * See exportMSCGridBinary(File).
+     * @param  gridFile    output file
+     * @param  bottomScale factor between the resolution of the bottom level and of the map, a power of two
+     *                     keeps the bottom level compressible as quadtree
+     * @throws IOException thrown in case gridFile could not be written
+     */
+    public void exportMSCGridBinary (File gridFile, int bottomScale) throws IOException {
+        /** maps without mid level MSCs, e.g. the yearly ones, only get a single top level */
+        boolean isMidLevelGrid = !midLevelMSCs.isEmpty();
+        boolean isBottomLevelGrid = isMidLevelGrid && !bottomLevelMSCs.isEmpty();
+
+        int[] resolutions;
+        if (isBottomLevelGrid) {
+            resolutions = new int[] {resolution, resolution, resolution * bottomScale};
+        } else if (isMidLevelGrid) {
+            resolutions = new int[] {resolution, resolution};
+        } else {
+            resolutions = new int[] {resolution};
+        }
+
+        MSCGridFile grid = new MSCGridFile(resolutions);
+        for (int i = 0; i < resolution; ++i) {
+            for (int j = 0; j < resolution; ++j) {
+                MSC currMSC = nearestMSC[i][j];
+                if (isMidLevelGrid) {
+                    MSC parentMSC = getParentMSC(currMSC);
+                    grid.set(0, i, j, parentMSC == null ? null : parentMSC.getName());
+                    grid.set(1, i, j, currMSC == null ? null : currMSC.getName());
+                } else {
+                    grid.set(0, i, j, currMSC == null ? null : currMSC.getName());
+                }
+            }
+        }
+
+        if (isBottomLevelGrid) {
+            MSC[][] bottomMSC = computeBottomLevel(bottomScale);
+            for (int i = 0; i < bottomMSC.length; ++i) {
+                for (int j = 0; j < bottomMSC.length; ++j) {
+                    grid.set(2, i, j, bottomMSC[i][j] == null ? null : bottomMSC[i][j].getName());
+                }
+            }
+        }
+
+        grid.write(gridFile);
+    }
+
+    /**
+     * Writes the border rings of all MSCs, as rendered into the map by exportToOSM(), into a MSCPolygons.bin
+     * next to MSCGrid.bin. The WebService uses them for exact point-in-polygon lookups, see MSCPolygonFile for
+     * the format. Level 0 holds the top level MSCs, level 1 the mid level ones if the map has any.
+     * @param  polygonFile output file
+     * @throws IOException thrown in case polygonFile could not be written
+     */
+    public void exportMSCPolygons (File polygonFile) throws IOException {
+        if (msc2borders.isEmpty()) {
+            throw new IllegalStateException("exportToOSM() has to be called before exportMSCPolygons()");
+        }
+
+        /** sorted by name, so the same map always gives the same file */
+        List<MSC> mscs = new ArrayList<MSC>(msc2borders.keySet());
+        Collections.sort(mscs, new Comparator<MSC>() {
+            @Override
+            public int compare(MSC msc1, MSC msc2) {
+                return msc1.getName().compareTo(msc2.getName());
+            }
+        });
+
+        MSCPolygonFile polygons = new MSCPolygonFile(resolution, midLevelMSCs.isEmpty() ? 1 : 2);
+        for (MSC msc: mscs) {
+            for (List<Coords2D> ring: msc2borders.get(msc)) {
+                polygons.addRing(msc.getLevel(), msc.getName(), ring);
+            }
+        }
+
+        polygons.write(polygonFile);
+    }
+
+    /**
+     * Writes which MSCs share a border into a MSCNeighbors.bin next to MSCGrid.bin, see MSCAdjacencyFile for the
+     * format. Level 0 holds the top level MSCs, level 1 the mid level ones if the map has any. Unlike
+     * createGraph(), which only compares neighbouring cells within a row for the coloring, all borders are
+     * considered; borders with the ocean are not edges.
+     * @param  neighborsFile output file
+     * @throws IOException   thrown in case neighborsFile could not be written
+     */
+    public void exportMSCNeighbors (File neighborsFile) throws IOException {
+        boolean isMidLevelGrid = !midLevelMSCs.isEmpty();
+        MSCAdjacencyFile adjacency = new MSCAdjacencyFile(isMidLevelGrid ? 2 : 1);
+
+        for (int i = 0; i < resolution; ++i) {
+            for (int j = 0; j < resolution; ++j) {
+                if (i + 1 < resolution) {
+                    addBorder(adjacency, isMidLevelGrid, nearestMSC[i][j], nearestMSC[i+1][j]);
+                }
+                if (j + 1 < resolution) {
+                    addBorder(adjacency, isMidLevelGrid, nearestMSC[i][j], nearestMSC[i][j+1]);
+                }
+            }
+        }
+
+        adjacency.write(neighborsFile);
+    }
+
+    private void addBorder(MSCAdjacencyFile adjacency, boolean isMidLevelGrid, MSC msc1, MSC msc2) {
+        if (msc1 == msc2 || msc1 == null || msc2 == null) {
+            return;
+        }
+
+        if (isMidLevelGrid) {
+            adjacency.addEdge(1, msc1.getName(), msc2.getName());
+            msc1 = getParentMSC(msc1);
+            msc2 = getParentMSC(msc2);
+        }
+
+        if (msc1 != msc2) {
+            adjacency.addEdge(0, msc1.getName(), msc2.getName());
+        }
+    }
+
     /**
      * This method was used to debug the labeling algorithm, no longer used.
      * @param  labelsF                OutputFile
@@ -985,13 +1770,18 @@ public class GenerateOSM {
     // }
 
     public static void main(String[] args) throws IOException {
-        if(args.length != 2) {
-            System.out.println("Usage: MapGeneration.jar <DataDir> <DescriptionFile>");
+        if(args.length < 2 || args.length > 6) {
+            System.out.println("Usage: MapGeneration.jar <DataDir> <DescriptionFile> [Threads] [COSINE|GAUSSIAN|WENDLAND] [Spread] [Zoom,...]");
             System.exit(-1);
         }
 
         File dataDir = new File(args[0]);
         File descriptionFile = new File(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Kernel kernel = args.length > 3 ? Kernel.valueOf(args[3]) : Kernel.COSINE;
+        double spread = args.length > 4 ? Double.parseDouble(args[4]) : DEFAULT_SPREAD;
+        /** zoom levels to write simplified maps for, in addition to the full one */
+        String[] zooms = args.length > 5 ? args[5].split(",") : new String[0];
 
         if (dataDir.listFiles() != null) {
             for (File file: dataDir.listFiles()) {
@@ -1003,10 +1793,18 @@ public class GenerateOSM {
                         File cityData = new File(file + "/cities.csv");
                         cityData = null;
                         GenerateOSM osm = new GenerateOSM(plotData, cityData,
-                            descriptionFile, 1024);
+                            descriptionFile, 1024, threads, kernel, spread);
                         // System.out.println(osm.getMSC(0.5, 0.5));
                         File output = new File(file + "/" + file.getName() + "Map.osm");
                         osm.exportToOSM(output);
+                        /** the files of the dataset for the WebService, see its README */
+                        osm.exportMSCGridBinary(new File(file + "/MSCGrid.bin"));
+                        osm.exportMSCPolygons(new File(file + "/MSCPolygons.bin"));
+                        osm.exportMSCNeighbors(new File(file + "/MSCNeighbors.bin"));
+                        for (String zoom: zooms) {
+                            osm.exportToOSM(new File(file + "/" + file.getName() + "Map_z" + zoom + ".osm"),
+                                    osm.getTolerance(Integer.parseInt(zoom)));
+                        }
                         // System.out.println(output.getPath());
 
 //                        osm.dumpLabels(new File(file + "/" + file.getName() + "Labels.osm"));
@@ -35,7 +35,8 @@ public class MSC {
     /**
      * Constructor setting the private fields. It sets the level depending on
      * the suffix of the name (top level classes end in -XX, mid level classes
-     * in -xx)
+     * in -xx). The yearly datasets name top level classes without the suffix,
+     * e.g. MSC35 instead of MSC35-XX.
      * @param name         name of the MSC
      * @param description  description of the MSC
      * @param x            x-coordinate
@@ -49,7 +50,7 @@ public class MSC {
         this.y = y;
         this.area = area;
 
-        if (name.endsWith("XX")) {
+        if (name.endsWith("XX") || name.length() == 5) {
             level = 0;
         } else if (name.endsWith("xx")) {
             level = 1;
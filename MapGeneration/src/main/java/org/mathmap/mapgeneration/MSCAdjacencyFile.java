@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mathmap.mapgeneration;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * MSCAdjacencyFile writes which MSCs share a border on the map (MSCNeighbors.bin), one graph per level, so the
+ * WebService can answer neighbour queries without any geometry. Every graph is stored in compressed sparse row
+ * (CSR) form: the neighbours of all MSCs in one array, and per MSC the offset of its first neighbour. The
+ * neighbours of MSC k are targets[offsets[k]], ..., targets[offsets[k + 1] - 1]. Every edge is stored in both
+ * directions, MSCs and neighbours are sorted by name.
+ *
+ * Layout (big endian, as written by DataOutputStream):
+ * <pre>
+ *   int    magic ('OMMA')
+ *   int    version (1)
+ *   int    number of levels
+ *   per level:
+ *     int  number of MSCs n
+ *     n    names, each written with writeUTF()
+ *     int  number of edges m, i.e. twice the number of borders
+ *     n+1  ints, offsets
+ *     m    ints, targets as indices into the names of the level
+ * </pre>
+ */
+public class MSCAdjacencyFile {
+    public static final int MAGIC = 0x4F4D4D41;
+    public static final int VERSION = 1;
+
+    /** adjacency.get(level) maps each MSC name to the names of its neighbours */
+    private List<SortedMap<String, SortedSet<String>>> adjacency = new ArrayList<SortedMap<String, SortedSet<String>>>();
+
+    /**
+     * Constructor allocating empty graphs.
+     * @param levels number of levels
+     */
+    public MSCAdjacencyFile(int levels) {
+        for (int level = 0; level < levels; ++level) {
+            adjacency.add(new TreeMap<String, SortedSet<String>>());
+        }
+    }
+
+    /**
+     * Records that two MSCs share a border. Adding the same border again has no effect.
+     * @param level level of the MSCs
+     * @param name1 name of the first MSC
+     * @param name2 name of the second MSC
+     */
+    public void addEdge(int level, String name1, String name2) {
+        if (name1.equals(name2)) {
+            return;
+        }
+
+        neighbors(level, name1).add(name2);
+        neighbors(level, name2).add(name1);
+    }
+
+    private SortedSet<String> neighbors(int level, String name) {
+        SortedSet<String> neighbors = adjacency.get(level).get(name);
+        if (neighbors == null) {
+            neighbors = new TreeSet<String>();
+            adjacency.get(level).put(name, neighbors);
+        }
+
+        return neighbors;
+    }
+
+    /**
+     * Writes the graphs to a file in the format described above. Like MSCGridFile.write() it replaces
+     * neighborsFile atomically.
+     * @param neighborsFile output file
+     * @throws IOException thrown in case neighborsFile could not be written
+     */
+    public void write(File neighborsFile) throws IOException {
+        File tmpFile = new File(neighborsFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(adjacency.size());
+
+            for (SortedMap<String, SortedSet<String>> graph: adjacency) {
+                Map<String, Integer> name2idx = new HashMap<String, Integer>();
+                out.writeInt(graph.size());
+                int edges = 0;
+                for (Map.Entry<String, SortedSet<String>> entry: graph.entrySet()) {
+                    name2idx.put(entry.getKey(), name2idx.size());
+                    out.writeUTF(entry.getKey());
+                    edges += entry.getValue().size();
+                }
+
+                out.writeInt(edges);
+                int offset = 0;
+                for (SortedSet<String> neighbors: graph.values()) {
+                    out.writeInt(offset);
+                    offset += neighbors.size();
+                }
+                out.writeInt(offset);
+
+                for (SortedSet<String> neighbors: graph.values()) {
+                    for (String neighbor: neighbors) {
+                        out.writeInt(name2idx.get(neighbor));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmpFile.toPath(), neighborsFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
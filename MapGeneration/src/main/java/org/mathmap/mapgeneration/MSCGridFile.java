@@ -0,0 +1,346 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mathmap.mapgeneration;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * MSCGridFile writes the binary MSC grid read by the WebService. Instead of one CSV per level it stores a
+ * dictionary of all MSC names followed by the cells of every level as indices into that dictionary, so the
+ * WebService can memory-map the file instead of parsing it.
+ *
+ * Every level has its own resolution, so finer levels (e.g. the bottom level of five digit MSCs) can be
+ * stored at a multiple of the resolution of the map. Levels up to MAX_DENSE_CELLS cells are stored densely,
+ * which gives the fastest lookups. Larger levels are stored as region quadtree, which only subdivides squares
+ * owned by more than one MSC, unless that would take more space.
+ *
+ * Layout (big endian, as written by DataOutputStream):
+ * <pre>
+ *   int    magic ('OMMG')
+ *   int    version (2; version 1 had no per level header and dense levels only)
+ *   int    resolution of level 0
+ *   int    number of levels
+ *   int    number of names n
+ *   n      names, each written with writeUTF(); index 0 is always "null", i.e. the ocean
+ *   per level:
+ *     int  resolution
+ *     int  encoding, DENSE or QUADTREE
+ *     DENSE:    resolution * resolution shorts, row-major
+ *     QUADTREE: int number of nodes m, followed by m ints
+ * </pre>
+ *
+ * The nodes of a quadtree are ints. The root is node 0. A node &gt;= 0 is a leaf, i.e. the whole square is
+ * owned by the MSC with that dictionary index. A node &lt; 0 is split into four quadrants whose nodes are
+ * stored at -node, ..., -node + 3, in the order (x, y), (x, y + h), (x + h, y), (x + h, y + h) for the
+ * half side length h. Quadtrees require a power of two as resolution.
+ */
+public class MSCGridFile {
+    public static final int MAGIC = 0x4F4D4D47;
+    public static final int VERSION = 2;
+
+    public static final int DENSE = 0;
+    public static final int QUADTREE = 1;
+
+    /** number of cells up to which a level is always stored densely, i.e. 2 MB */
+    public static final int MAX_DENSE_CELLS = 1024 * 1024;
+
+    /** name used for cells not belonging to any MSC */
+    public static final String NULL_NAME = "null";
+
+    private int[] resolutions;
+    private int levels;
+
+    private List<String> names = new ArrayList<String>();
+    private Map<String, Short> name2idx = new HashMap<String, Short>();
+
+    /** cells[level][x * resolutions[level] + y] is the index of the MSC name owning that cell */
+    private short[][] cells;
+
+    /**
+     * Constructor allocating an empty grid, i.e. every cell is initialized to "null".
+     * @param resolution resolution of the grid
+     * @param levels     number of levels stored in the grid
+     */
+    public MSCGridFile(int resolution, int levels) {
+        this(sameResolution(resolution, levels));
+    }
+
+    /**
+     * Constructor allocating an empty grid with a different resolution per level.
+     * @param resolutions resolution of each level, starting with the top level
+     */
+    public MSCGridFile(int[] resolutions) {
+        this.resolutions = resolutions.clone();
+        this.levels = resolutions.length;
+        cells = new short[levels][];
+        for (int level = 0; level < levels; ++level) {
+            cells[level] = new short[resolutions[level] * resolutions[level]];
+        }
+        getIndex(NULL_NAME);
+    }
+
+    private static int[] sameResolution(int resolution, int levels) {
+        int[] resolutions = new int[levels];
+        Arrays.fill(resolutions, resolution);
+        return resolutions;
+    }
+
+    /**
+     * Returns the dictionary index of a given name, adding it to the dictionary if necessary.
+     * @param name name of the MSC, null is mapped to "null"
+     * @return dictionary index
+     */
+    private short getIndex(String name) {
+        if (name == null) {
+            name = NULL_NAME;
+        }
+
+        Short idx = name2idx.get(name);
+        if (idx == null) {
+            if (names.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many distinct MSCs for a binary grid: " + names.size());
+            }
+            idx = (short) names.size();
+            names.add(name);
+            name2idx.put(name, idx);
+        }
+
+        return idx;
+    }
+
+    /**
+     * Sets the MSC owning a cell.
+     * @param level level of the cell
+     * @param x     x-coordinate of the cell
+     * @param y     y-coordinate of the cell
+     * @param name  name of the MSC, null for the ocean
+     */
+    public void set(int level, int x, int y, String name) {
+        cells[level][x * resolutions[level] + y] = getIndex(name);
+    }
+
+    /**
+     * Encodes a level as quadtree, see the class comment.
+     * @param level level to encode, its resolution has to be a power of two
+     * @return the nodes, starting with the root
+     */
+    int[] buildQuadTree(int level) {
+        int resolution = resolutions[level];
+        if (Integer.bitCount(resolution) != 1) {
+            throw new IllegalArgumentException("Resolution " + resolution + " is not a power of two");
+        }
+
+        QuadTreeBuilder builder = new QuadTreeBuilder(cells[level], resolution);
+        /** the root is allocated first, so it ends up at index 0 */
+        builder.allocate(1);
+        int root = builder.build(0, 0, resolution);
+        builder.nodes[0] = root;
+        return Arrays.copyOf(builder.nodes, builder.size);
+    }
+
+    /**
+     * Builds the nodes of a quadtree bottom-up from the dense cells of a level.
+     */
+    private static class QuadTreeBuilder {
+        private short[] cells;
+        private int resolution;
+
+        private int[] nodes = new int[64];
+        private int size = 0;
+
+        QuadTreeBuilder(short[] cells, int resolution) {
+            this.cells = cells;
+            this.resolution = resolution;
+        }
+
+        /**
+         * @return index of the first of count new nodes
+         */
+        int allocate(int count) {
+            if (size + count > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(size + count, 2 * nodes.length));
+            }
+            size += count;
+            return size - count;
+        }
+
+        /**
+         * Encodes the square of side length side at (x, y).
+         * @return the node of the square, i.e. a dictionary index if the square is owned by a single MSC
+         */
+        int build(int x, int y, int side) {
+            if (side == 1) {
+                return cells[x * resolution + y];
+            }
+
+            /** allocate the quadrants before encoding them, so they are stored next to each other */
+            int first = allocate(4);
+            int half = side / 2;
+            int q0 = build(x, y, half);
+            int q1 = build(x, y + half, half);
+            int q2 = build(x + half, y, half);
+            int q3 = build(x + half, y + half, half);
+
+            /** a square owned by a single MSC is a leaf, everything allocated for it can be dropped again */
+            if (q0 >= 0 && q0 == q1 && q0 == q2 && q0 == q3) {
+                size = first;
+                return q0;
+            }
+
+            nodes[first] = q0;
+            nodes[first + 1] = q1;
+            nodes[first + 2] = q2;
+            nodes[first + 3] = q3;
+            return -first;
+        }
+    }
+
+    /**
+     * Writes the grid to a file in the format described above. The data is written to a temporary file which
+     * then replaces gridFile, so a running WebService never maps a half-written grid.
+     * @param gridFile output file
+     * @throws IOException thrown in case gridFile could not be written
+     */
+    public void write(File gridFile) throws IOException {
+        File tmpFile = new File(gridFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(resolutions[0]);
+            out.writeInt(levels);
+            out.writeInt(names.size());
+            for (String name: names) {
+                out.writeUTF(name);
+            }
+
+            for (int level = 0; level < levels; ++level) {
+                out.writeInt(resolutions[level]);
+
+                /** store large levels as quadtree if that takes less space than the dense cells */
+                int[] nodes = null;
+                if (cells[level].length > MAX_DENSE_CELLS && Integer.bitCount(resolutions[level]) == 1) {
+                    nodes = buildQuadTree(level);
+                }
+
+                if (nodes != null && 4L * (nodes.length + 1) < 2L * cells[level].length) {
+                    out.writeInt(QUADTREE);
+                    out.writeInt(nodes.length);
+                    for (int node: nodes) {
+                        out.writeInt(node);
+                    }
+                } else {
+                    out.writeInt(DENSE);
+                    for (short idx: cells[level]) {
+                        out.writeShort(idx);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmpFile.toPath(), gridFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a grid CSV as written by GenerateOSM.exportMSCGrid() into its rows.
+     * @param csvFile grid CSV file
+     * @return list of rows, each split into its cells
+     * @throws IOException thrown in case csvFile could not be read
+     */
+    private static List<String[]> readCSV(File csvFile) throws IOException {
+        List<String[]> rows = new ArrayList<String[]>();
+        BufferedReader br = new BufferedReader(new FileReader(csvFile));
+        String line = br.readLine();
+        while (line != null) {
+            rows.add(line.split(";"));
+            line = br.readLine();
+        }
+        br.close();
+
+        return rows;
+    }
+
+    /**
+     * Reads MSCGrid0.csv, MSCGrid1.csv, ... into a single grid. The resolution is taken from the number of
+     * rows of the first file.
+     * @param csvFiles one file per level
+     * @return grid containing all levels
+     * @throws IOException thrown in case one of the files could not be read or has the wrong size
+     */
+    public static MSCGridFile fromCSV(File[] csvFiles) throws IOException {
+        MSCGridFile grid = null;
+
+        for (int level = 0; level < csvFiles.length; ++level) {
+            List<String[]> rows = readCSV(csvFiles[level]);
+            if (grid == null) {
+                grid = new MSCGridFile(rows.size(), csvFiles.length);
+            }
+
+            int resolution = grid.resolutions[level];
+            if (rows.size() != resolution) {
+                throw new IOException(csvFiles[level] + " has " + rows.size() + " rows, expected " + resolution);
+            }
+
+            for (int i = 0; i < resolution; ++i) {
+                String[] tokens = rows.get(i);
+                if (tokens.length != resolution) {
+                    throw new IOException(csvFiles[level] + ":" + (i + 1) + " has " + tokens.length
+                            + " columns, expected " + resolution);
+                }
+                for (int j = 0; j < resolution; ++j) {
+                    grid.set(level, i, j, tokens[j]);
+                }
+            }
+        }
+
+        return grid;
+    }
+
+    /**
+     * Converts the MSCGrid*.csv files of a data directory into a single MSCGrid.bin next to them.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: MSCGridFile <DataDir>");
+            System.exit(-1);
+        }
+
+        File dataDir = new File(args[0]);
+        List<File> csvFiles = new ArrayList<File>();
+        for (int level = 0; new File(dataDir, "MSCGrid" + level + ".csv").exists(); ++level) {
+            csvFiles.add(new File(dataDir, "MSCGrid" + level + ".csv"));
+        }
+
+        if (csvFiles.isEmpty()) {
+            System.out.println("No MSCGrid0.csv found in " + dataDir);
+            System.exit(-1);
+        }
+
+        File output = new File(dataDir, "MSCGrid.bin");
+        fromCSV(csvFiles.toArray(new File[csvFiles.size()])).write(output);
+        System.out.println("Wrote " + output.getPath());
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mathmap.mapgeneration;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * MSCPolygonFile writes the border polygons of the MSCs (MSCPolygons.bin), i.e. the same rings GenerateOSM
+ * renders as ways of the map. The WebService loads them into an R-tree and answers queries with a
+ * point-in-polygon test instead of looking up the cell of the grid, so clicks resolve to the MSC drawn on the
+ * map at any zoom.
+ *
+ * All border coordinates lie on half cells, e.g. (i + 0.5, j) or (i + 0.5, j + 0.5), so they are stored exactly
+ * as twice their value in a short. An MSC may have several rings, e.g. islands or lakes; a point belongs to it if
+ * it is inside an odd number of its rings.
+ *
+ * Layout (big endian, as written by DataOutputStream):
+ * <pre>
+ *   int    magic ('OMMP')
+ *   int    version (1)
+ *   int    resolution of the map
+ *   int    number of levels
+ *   int    number of names n
+ *   n      names, each written with writeUTF(); index 0 is always "null", i.e. the ocean
+ *   per level:
+ *     int  number of rings r
+ *     int  number of vertices v
+ *     r    rings, each as three ints: name index, index of the first vertex, number of vertices
+ *     v    vertices, each as two shorts: 2 * x, 2 * y
+ * </pre>
+ */
+public class MSCPolygonFile {
+    public static final int MAGIC = 0x4F4D4D50;
+    public static final int VERSION = 1;
+
+    private int resolution;
+    private int levels;
+
+    private List<String> names = new ArrayList<String>();
+    private Map<String, Integer> name2idx = new HashMap<String, Integer>();
+
+    /** rings[level] holds name index, first vertex and vertex count of every ring of the level */
+    private List<List<int[]>> rings = new ArrayList<List<int[]>>();
+
+    /** vertices[level] holds 2 * x, 2 * y of all vertices of the level */
+    private List<ShortList> vertices = new ArrayList<ShortList>();
+
+    /**
+     * Constructor allocating an empty file.
+     * @param resolution resolution of the map
+     * @param levels     number of levels
+     */
+    public MSCPolygonFile(int resolution, int levels) {
+        if (2 * resolution > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Resolution " + resolution + " is too large for MSC polygons");
+        }
+
+        this.resolution = resolution;
+        this.levels = levels;
+        for (int level = 0; level < levels; ++level) {
+            rings.add(new ArrayList<int[]>());
+            vertices.add(new ShortList());
+        }
+        getIndex(MSCGridFile.NULL_NAME);
+    }
+
+    private int getIndex(String name) {
+        Integer idx = name2idx.get(name);
+        if (idx == null) {
+            idx = names.size();
+            names.add(name);
+            name2idx.put(name, idx);
+        }
+
+        return idx;
+    }
+
+    /**
+     * Adds a ring of an MSC.
+     * @param level level of the MSC
+     * @param name  name of the MSC
+     * @param ring  border coordinates in the order they are visited, in grid coordinates
+     */
+    public void addRing(int level, String name, List<Coords2D> ring) {
+        ShortList levelVertices = vertices.get(level);
+        rings.get(level).add(new int[] {getIndex(name), levelVertices.size() / 2, ring.size()});
+        for (Coords2D coords: ring) {
+            levelVertices.add(toShort(coords.getX()));
+            levelVertices.add(toShort(coords.getY()));
+        }
+    }
+
+    private short toShort(double coord) {
+        if (coord < 0 || coord > resolution || 2 * coord != Math.rint(2 * coord)) {
+            throw new IllegalArgumentException("Border coordinate " + coord + " is not on a half cell of the map");
+        }
+
+        return (short) (2 * coord);
+    }
+
+    /**
+     * Writes the polygons to a file in the format described above. Like MSCGridFile.write() it replaces
+     * polygonFile atomically.
+     * @param polygonFile output file
+     * @throws IOException thrown in case polygonFile could not be written
+     */
+    public void write(File polygonFile) throws IOException {
+        File tmpFile = new File(polygonFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(resolution);
+            out.writeInt(levels);
+            out.writeInt(names.size());
+            for (String name: names) {
+                out.writeUTF(name);
+            }
+
+            for (int level = 0; level < levels; ++level) {
+                ShortList levelVertices = vertices.get(level);
+                out.writeInt(rings.get(level).size());
+                out.writeInt(levelVertices.size() / 2);
+                for (int[] ring: rings.get(level)) {
+                    out.writeInt(ring[0]);
+                    out.writeInt(ring[1]);
+                    out.writeInt(ring[2]);
+                }
+                for (int i = 0; i < levelVertices.size(); ++i) {
+                    out.writeShort(levelVertices.get(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmpFile.toPath(), polygonFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Growable array of shorts, a List&lt;Short&gt; would take about ten times the memory.
+     */
+    private static class ShortList {
+        private short[] values = new short[1024];
+        private int size = 0;
+
+        void add(short value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+
+        short get(int idx) {
+            return values[idx];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
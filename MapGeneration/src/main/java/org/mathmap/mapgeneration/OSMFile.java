@@ -20,27 +20,78 @@
 package org.mathmap.mapgeneration;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * OSMFile is a class providing a simple API to write a *.osm XML file.
  * It provides methods to write different kind of nodes and ways.
+ *
+ * The XML is formatted into a reusable byte buffer, which is written to the file channel whenever it is full,
+ * instead of going through PrintWriter.printf(), whose parsing of the format string and boxing of the arguments
+ * dominated the export of large maps. Integers and coordinates are formatted by hand into the same text printf()
+ * produced, a coordinate only falls back to String.format() if it lies within 1e-11 of a tie of the rounding to
+ * seven decimals. The file is encoded in UTF-8 as the header declares and always uses '.' as decimal separator.
+ * If the name of the file ends with ".gz" it is compressed with gzip while being written.
+ *
+ * Errors while writing are kept until close() reports them, so that the methods adding nodes and ways need not
+ * throw.
  */
 public class OSMFile {
-    private PrintWriter pw; /** PrintWriter responsible for writing the file */
+    /** size of the buffer, and of the buffer of the compression */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** what PrintWriter.println() used to terminate the lines with, printf() used "\n" */
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /** 10^7, the coordinates are written with seven decimals */
+    private static final double SCALE = 1e7;
+
+    private WritableByteChannel channel; /** channel of the file, or of its compression */
+    private byte[] buffer = new byte[BUFFER_SIZE]; /** formatted XML not written yet */
+    private int position = 0; /** number of bytes in buffer */
+    private byte[] digits = new byte[20]; /** scratch space for formatting numbers */
+    private IOException error = null; /** first error while writing, reported by close() */
     private int resolution; /** resolution of the map */
 
     /**
-     * Constructor setting resolution and initializing pw.
+     * Constructor setting resolution and opening the file, compressed if its name ends with ".gz".
+     * Also it calls the printHeader() function.
+     * @param osmFile    File representing the file to be written to.
+     * @param resolution resolution of the map
+     * @throws IOException thrown in case osmFile could not be opened
+     */
+    public OSMFile(File osmFile, int resolution) throws IOException {
+        this(osmFile, resolution, osmFile.getName().endsWith(".gz"));
+    }
+
+    /**
+     * Constructor setting resolution and opening the file.
      * Also it calls the printHeader() function.
      * @param osmFile    File representing the file to be written to.
      * @param resolution resolution of the map
-     * @throws FileNotFoundException thrown in case osmFile could not be found
+     * @param gzip       whether to compress the file with gzip
+     * @throws IOException thrown in case osmFile could not be opened
      */
-    public OSMFile(File osmFile, int resolution) throws FileNotFoundException {
+    public OSMFile(File osmFile, int resolution, boolean gzip) throws IOException {
         this.resolution = resolution;
-        pw = new PrintWriter(osmFile);
+        FileOutputStream out = new FileOutputStream(osmFile);
+        if (gzip) {
+            try {
+                channel = Channels.newChannel(new GZIPOutputStream(out, BUFFER_SIZE));
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        } else {
+            channel = out.getChannel();
+        }
         printHeader();
     }
 
@@ -48,8 +99,10 @@ public class OSMFile {
      * Prints the header of the XML.
      */
     public void printHeader() {
-        pw.println("<?xml version='1.0' encoding='UTF-8'?>");
-        pw.println("<osm version='0.6' generator='kwarc.info'>");
+        write("<?xml version='1.0' encoding='UTF-8'?>");
+        write(LINE_SEPARATOR);
+        write("<osm version='0.6' generator='kwarc.info'>");
+        write(LINE_SEPARATOR);
     }
 
     /**
@@ -71,8 +124,13 @@ public class OSMFile {
      * @param longitude longitude of the node
      */
     public void addGridNode(double latitude, double longitude) {
-        pw.printf("<node id='%d' lat='%.7f' lon='%.7f' visible='true' version='1' />\n",
-                getGridNodeID(latitude, longitude), latitude / resolution, longitude / resolution);
+        write("<node id='");
+        write(getGridNodeID(latitude, longitude));
+        write("' lat='");
+        writeCoordinate(latitude / resolution);
+        write("' lon='");
+        writeCoordinate(longitude / resolution);
+        write("' visible='true' version='1' />\n");
     }
 
     /**
@@ -84,8 +142,13 @@ public class OSMFile {
      * @param name      name of the node
      */
     public void addSpecialNode(double latitude, double longitude, String name) {
-        pw.printf("<node id='%d' lat='%.7f' lon='%.7f' visible='true' version='1'>",
-                name.hashCode(), latitude, longitude);
+        write("<node id='");
+        write(name.hashCode());
+        write("' lat='");
+        writeCoordinate(latitude);
+        write("' lon='");
+        writeCoordinate(longitude);
+        write("' visible='true' version='1'>");
     }
 
     /**
@@ -94,14 +157,19 @@ public class OSMFile {
      * @param value value of the tag
      */
     public void addTag(String key, String value) {
-        pw.printf("<tag k='%s' v='%s' />\n", key, value);
+        write("<tag k='");
+        write(String.valueOf(key));
+        write("' v='");
+        write(String.valueOf(value));
+        write("' />\n");
     }
 
     /**
      * Ends a special node by writing the node closing tag.
      */
     public void endSpecialNode() {
-        pw.println("</node>");
+        write("</node>");
+        write(LINE_SEPARATOR);
     }
 
     /**
@@ -109,7 +177,9 @@ public class OSMFile {
      * @param name name of the way
      */
     public void addWay(String name) {
-        pw.printf("<way id='%d' action='modify' visible='true' version='1'>\n", name.hashCode());
+        write("<way id='");
+        write(name.hashCode());
+        write("' action='modify' visible='true' version='1'>\n");
     }
 
     /**
@@ -119,7 +189,9 @@ public class OSMFile {
      * @param longitude longitude of the referenced grid node
      */
     public void addGridNodeReference(double latitude, double longitude) {
-        pw.printf("<nd ref='%d' />\n", getGridNodeID(latitude, longitude));
+        write("<nd ref='");
+        write(getGridNodeID(latitude, longitude));
+        write("' />\n");
     }
 
     /**
@@ -128,21 +200,137 @@ public class OSMFile {
      * @param name name of the special node
      */
     public void addSpecialNodeReference(String name) {
-        pw.printf("<nd ref='%d' />\n", name.hashCode());
+        write("<nd ref='");
+        write(name.hashCode());
+        write("' />\n");
     }
 
     /**
      * Ends a way by writing the way closing tag.
      */
     public void endWay() {
-        pw.println("</way>");
+        write("</way>");
+        write(LINE_SEPARATOR);
+    }
+
+    /**
+     * Closes the file by writing the osm closing tag, writing the rest of the buffer and closing the channel.
+     * @throws IOException thrown in case the file could not be written
+     */
+    public void close() throws IOException {
+        write("</osm>");
+        write(LINE_SEPARATOR);
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Writes the buffer to the channel and empties it. After an error the buffer is dropped.
+     */
+    private void flush() {
+        if (error == null) {
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, position);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        position = 0;
+    }
+
+    private void write(byte b) {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = b;
+    }
+
+    private void write(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                /** not ASCII, encode the rest of the string properly, surrogate pairs included */
+                for (byte b: s.substring(i).getBytes(StandardCharsets.UTF_8)) {
+                    write(b);
+                }
+                return;
+            }
+            write((byte) c);
+        }
+    }
+
+    /**
+     * Writes an int like "%d" does.
+     */
+    private void write(int value) {
+        if (value == Integer.MIN_VALUE) {
+            write(Integer.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write((byte) '-');
+            value = -value;
+        }
+        writeDigits(value, 1);
+    }
+
+    /**
+     * Writes a non-negative number with at least minDigits digits, padded with zeros.
+     */
+    private void writeDigits(long value, int minDigits) {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count < minDigits) {
+            digits[count++] = '0';
+        }
+        while (count > 0) {
+            write(digits[--count]);
+        }
     }
 
     /**
-     * Closes the file by writing the osm closing tag and closing pw.
+     * Writes a coordinate like "%.7f" does, which rounds the shortest decimal representing it half up.
+     * @param value latitude or longitude
      */
-    public void close() {
-        pw.println("</osm>");
-        pw.close();
+    private void writeCoordinate(double value) {
+        double magnitude = Math.abs(value);
+        /** NaN and infinity fail the comparison */
+        if (magnitude < 32.0) {
+            double scaled = magnitude * SCALE;
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            /**
+             * With at most 24 binary places, which includes every grid node, the product above is exact and so is
+             * the decimal printf() rounds. Otherwise the product may be off by an ulp, which only matters at a tie.
+             */
+            boolean exact = magnitude * (1 << 24) == Math.floor(magnitude * (1 << 24));
+            if (exact || Math.abs(fraction - 0.5) > 1e-4) {
+                long rounded = (long) floor + (fraction >= 0.5 ? 1 : 0);
+                if (value < 0.0 || 1.0 / value < 0.0) {
+                    write((byte) '-');
+                }
+                writeDigits(rounded / 10000000L, 1);
+                write((byte) '.');
+                writeDigits(rounded % 10000000L, 7);
+                return;
+            }
+        }
+        write(String.format(Locale.ROOT, "%.7f", value));
     }
-}
\ No newline at end of file
+}
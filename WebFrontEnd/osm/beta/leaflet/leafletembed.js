@@ -38,7 +38,7 @@ function initmap() {
 	z = map.getZoom();
         latlng = e.latlng;
         $.ajax({
-   	    url: mathservice + "mscquery/?lat=" + x + "&long=" + y + "&zoom=" + z,
+   	    url: mathservice + "mscquery/?lat=" + x + "&long=" + y + "&zoom=" + z + "&nearest=true",
 	    headers: { 
 		jsonp: 'application/javascript'
 	    },
@@ -47,6 +47,8 @@ function initmap() {
             contentType: 'application/javascript',
             crossDomain: true,
             type: 'GET',
+            // no cache busting parameter, the answers carry ETag and Cache-Control
+            cache: true,
 	    jsonpCallback: 'getMsc'	
 	});
     });
@@ -118,17 +120,53 @@ function buildMenu() {
 	});
 }
 
+// milliseconds without a keystroke before suggestions are requested
+var suggestDelay = 150;
+var suggestTimer;
+
 function searchListen() {
 	$('#mscSearch').bind("enterKey",function(e) {
 		getPosition($.trim($('#mscSearch').val()));
 	});
 	$('#mscSearch').keyup(function(e){
+		clearTimeout(suggestTimer);
 		if(e.keyCode == 13) {
 		  $(this).trigger("enterKey");
+		} else {
+		  var prefix = $.trim($(this).val());
+		  suggestTimer = setTimeout(function () {
+			  suggest(prefix);
+		  }, suggestDelay);
 		}
 	});
 }
 
+// fills the datalist of the search box with completions of the typed prefix
+function suggest(prefix) {
+	if (prefix.length == 0) {
+		$('#mscSuggestions').empty();
+		return;
+	}
+	$.ajax({
+	    url: mathservice + "mscsuggest/?limit=10&prefix=" + encodeURIComponent(prefix),
+	    dataType: 'jsonp',
+	    crossDomain: true,
+	    type: 'GET',
+	    // no cache busting parameter and a fixed callback, the answers carry ETag and Cache-Control
+	    cache: true,
+	    jsonpCallback: 'getSuggestions'
+	}).done(function (data) {
+		// ignore answers to prefixes the user has already typed past
+		if ($.trim($('#mscSearch').val()) != prefix) {
+			return;
+		}
+		var options = $('#mscSuggestions').empty();
+		$.each(data, function (i, msc) {
+			options.append($('<option>').attr('value', msc.name.substring(3)).text(msc.description));
+		});
+	});
+}
+
 function getPosition(e) {
 	if (e.length > 1) {
 		marker = L.marker([0.5, 0.5]);
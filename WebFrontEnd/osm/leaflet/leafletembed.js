@@ -43,7 +43,7 @@ function initmap() {
 	z = map.getZoom();
         latlng = e.latlng;
         $.ajax({
-   	    url: mathservice + "mscquery/?lat=" + x + "&long=" + y + "&zoom=" + z,
+   	    url: mathservice + "mscquery/?lat=" + x + "&long=" + y + "&zoom=" + z + "&nearest=true",
 	    headers: {
 		jsonp: 'application/javascript'
 	    },
@@ -52,6 +52,8 @@ function initmap() {
             contentType: 'application/javascript',
             crossDomain: true,
             type: 'GET',
+            // no cache busting parameter, the answers carry ETag and Cache-Control
+            cache: true,
 	    jsonpCallback: 'getMsc'
 	});
     });
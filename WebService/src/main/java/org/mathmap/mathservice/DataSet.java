@@ -0,0 +1,574 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Immutable snapshot of everything the webservice serves from a data
+ * directory: the MSC descriptions, the plot data, the grid, the search
+ * index over the descriptions and the rendered responses. A DataSet
+ * is fully built by load() before anyone can see it, so requests can
+ * read it without any synchronization.
+ */
+public class DataSet {
+	/** upper bound for the cells of a region, as many as a 512x512 grid has */
+	public static final int MAX_REGION_CELLS = 512 * 512;
+
+
+	private final File dataDir;
+	private final MSCGrid grid;
+	private final MSC[] gridMSCs;
+	private final MSCPolygons polygons;
+	private final MSC[] polygonMSCs;
+	private final KdTree[] centroids;
+	private final MSCAdjacency adjacency;
+	/** MSCs of the adjacency per level */
+	private final MSC[][] adjacencyMSCs;
+	private final Map<String, String> name2desc;
+	private final Map<String, MSC> name2msc;
+	private final List<MSC> mscs;
+	private final SearchIndex searchIndex;
+	private final SuggestIndex suggestIndex;
+	private final MSC[] searchMSCs;
+	private final ResponseCache responses;
+
+	private DataSet(File dataDir, MSCGrid grid, MSC[] gridMSCs, MSCPolygons polygons, MSC[] polygonMSCs,
+			KdTree[] centroids, MSCAdjacency adjacency, MSC[][] adjacencyMSCs,
+			Map<String, String> name2desc, Map<String, MSC> name2msc, List<MSC> mscs,
+			SearchIndex searchIndex, SuggestIndex suggestIndex, MSC[] searchMSCs, ResponseCache responses) {
+		this.dataDir = dataDir;
+		this.grid = grid;
+		this.gridMSCs = gridMSCs;
+		this.polygons = polygons;
+		this.polygonMSCs = polygonMSCs;
+		this.centroids = centroids;
+		this.adjacency = adjacency;
+		this.adjacencyMSCs = adjacencyMSCs;
+		this.name2desc = name2desc;
+		this.name2msc = name2msc;
+		this.mscs = mscs;
+		this.searchIndex = searchIndex;
+		this.suggestIndex = suggestIndex;
+		this.searchMSCs = searchMSCs;
+		this.responses = responses;
+	}
+
+	/**
+	 * Loads a data directory containing Descriptions.txt, MergedPlotData.txt,
+	 * either MSCGrid.bin or MSCGrid0.csv, MSCGrid1.csv, ... and optionally
+	 * MSCPolygons.bin and MSCNeighbors.bin.
+	 */
+	public static DataSet load(File dataDir) throws IOException {
+		long start = System.nanoTime();
+		Map<String, String> name2desc = parseDescriptions(new File(dataDir, "Descriptions.txt"));
+		Metrics.LOAD_DESCRIPTIONS.recordSince(start);
+
+		long indexStart = System.nanoTime();
+		SearchIndex searchIndex = new SearchIndex(name2desc);
+		SuggestIndex suggestIndex = new SuggestIndex(searchIndex, name2desc);
+		Metrics.LOAD_INDEX.recordSince(indexStart);
+
+		DataSet dataSet = load(dataDir, name2desc, searchIndex, suggestIndex);
+		Metrics.LOAD_DATASET.recordSince(start);
+		return dataSet;
+	}
+
+	/**
+	 * Loads a yearly or cumulative dataset directory, which only contains the
+	 * grid and optionally MergedPlotData.txt or PlotData.txt. Descriptions
+	 * and search indices are shared with the parent dataset.
+	 */
+	public static DataSet load(File dataDir, DataSet parent) throws IOException {
+		long start = System.nanoTime();
+		DataSet dataSet = load(dataDir, parent.name2desc, parent.searchIndex, parent.suggestIndex);
+		Metrics.LOAD_DATASET.recordSince(start);
+		return dataSet;
+	}
+
+	private static DataSet load(File dataDir, Map<String, String> name2desc, SearchIndex searchIndex,
+			SuggestIndex suggestIndex) throws IOException {
+		List<MSC> mscs = new ArrayList<MSC>();
+		Map<String, MSC> name2msc = new HashMap<String, MSC>();
+		File plotData = new File(dataDir, "MergedPlotData.txt");
+		if (!plotData.exists()) {
+			plotData = new File(dataDir, "PlotData.txt");
+		}
+		if (plotData.exists()) {
+			long start = System.nanoTime();
+			parsePlotData(plotData, name2desc, mscs, name2msc);
+			Metrics.LOAD_PLOTDATA.recordSince(start);
+		}
+
+		long start = System.nanoTime();
+		MSCGrid grid = parseGrid(dataDir);
+		Metrics.LOAD_GRID.recordSince(start);
+
+		MSC[] gridMSCs = createGridMSCs(grid, name2desc, name2msc);
+
+		start = System.nanoTime();
+		KdTree[] centroids = createCentroidTrees(grid);
+		Metrics.LOAD_CENTROIDS.recordSince(start);
+
+		MSCPolygons polygons = null;
+		MSC[] polygonMSCs = null;
+		File polygonFile = new File(dataDir, "MSCPolygons.bin");
+		if (polygonFile.exists()) {
+			start = System.nanoTime();
+			polygons = MSCPolygons.map(polygonFile);
+			Metrics.LOAD_POLYGONS.recordSince(start);
+			if (polygons.getResolution() != grid.getResolution()) {
+				throw new IOException(polygonFile + " has resolution " + polygons.getResolution()
+						+ ", the grid " + grid.getResolution());
+			}
+
+			polygonMSCs = new MSC[polygons.size()];
+			for (int i = 0; i < polygonMSCs.length; i++) {
+				polygonMSCs[i] = getOrCreateMSC(polygons.getName(i), name2desc, name2msc);
+			}
+		}
+
+		MSCAdjacency adjacency = null;
+		MSC[][] adjacencyMSCs = null;
+		File neighborsFile = new File(dataDir, "MSCNeighbors.bin");
+		if (neighborsFile.exists()) {
+			start = System.nanoTime();
+			adjacency = MSCAdjacency.read(neighborsFile);
+			Metrics.LOAD_NEIGHBORS.recordSince(start);
+
+			adjacencyMSCs = new MSC[adjacency.getLevels()][];
+			for (int level = 0; level < adjacencyMSCs.length; ++level) {
+				adjacencyMSCs[level] = new MSC[adjacency.size(level)];
+				for (int i = 0; i < adjacencyMSCs[level].length; i++) {
+					adjacencyMSCs[level][i] =
+							getOrCreateMSC(adjacency.getName(level, i), name2desc, name2msc);
+				}
+			}
+		}
+
+		MSC[] searchMSCs = createSearchMSCs(searchIndex, name2desc, name2msc);
+
+		start = System.nanoTime();
+		ResponseCache responses = new ResponseCache(name2msc.values());
+		Metrics.LOAD_RESPONSES.recordSince(start);
+
+		return new DataSet(dataDir, grid, gridMSCs, polygons, polygonMSCs,
+				centroids, adjacency, adjacencyMSCs,
+				Collections.unmodifiableMap(name2desc),
+				Collections.unmodifiableMap(name2msc),
+				Collections.unmodifiableList(mscs),
+				searchIndex, suggestIndex, searchMSCs, responses);
+	}
+
+	/**
+	 * Looks up the description of an MSC. The yearly datasets name top
+	 * level classes MSC00 instead of MSC00-XX, those are resolved as well.
+	 */
+	private static String describe(Map<String, String> name2desc, String name) {
+		String desc = name2desc.get(name);
+		if (desc == null && name.length() == 5) {
+			desc = name2desc.get(name + "-XX");
+		}
+		return desc;
+	}
+
+	public static Map<String, String> parseDescriptions(File descFile) throws IOException {
+		Map<String, String> name2desc = new TreeMap<String, String>();
+		BufferedReader br = new BufferedReader(new FileReader(descFile));
+		String line = br.readLine();
+		while (line != null) {
+			String tokens[] = line.split("\\*\\*\\*");
+
+			String name = "MSC" + tokens[0];
+			String desc = tokens[1];
+			name2desc.put(name, desc);
+			line = br.readLine();
+		}
+
+		name2desc.put("null", "null");
+		br.close();
+		return name2desc;
+	}
+
+	public static void parsePlotData(File plotData, Map<String, String> name2desc,
+			List<MSC> mscs, Map<String, MSC> name2msc) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(plotData));
+		String line = br.readLine();
+		while (line != null) {
+			String tokens[] = line.split(",");
+			String name = tokens[0];
+			String desc = describe(name2desc, name);
+			double xCoord = Double.parseDouble(tokens[1]);
+			double yCoord = Double.parseDouble(tokens[2]);
+			double area   = Double.parseDouble(tokens[3]);
+
+			MSC msc = new MSC(name, desc, xCoord, yCoord, area);
+			mscs.add(msc);
+			name2msc.put(name, msc);
+			line = br.readLine();
+		}
+
+		br.close();
+	}
+
+	/**
+	 * Memory-maps MSCGrid.bin if present, otherwise parses the CSV files.
+	 */
+	public static MSCGrid parseGrid(File dataDir) throws IOException {
+		File binaryGridFile = new File(dataDir, "MSCGrid.bin");
+		if (binaryGridFile.exists()) {
+			return MSCGrid.map(binaryGridFile);
+		}
+
+		List<File> gridFiles = new ArrayList<File>();
+		for (int level = 0; ; ++level) {
+			File gridFile = new File(dataDir, "MSCGrid" + level + ".csv");
+			if (!gridFile.exists()) {
+				break;
+			}
+			gridFiles.add(gridFile);
+		}
+
+		if (gridFiles.isEmpty()) {
+			throw new FileNotFoundException("No MSCGrid.bin or MSCGrid0.csv in " + dataDir);
+		}
+
+		return MSCGrid.parseCSV(gridFiles.toArray(new File[gridFiles.size()]));
+	}
+
+	/**
+	 * Creates the table of MSCs the grid indices point into. Every grid
+	 * entry shares its MSC instance with the plot data, so the number of
+	 * objects only depends on the number of distinct MSCs, not on the
+	 * resolution.
+	 */
+	private static MSC[] createGridMSCs(MSCGrid grid, Map<String, String> name2desc,
+			Map<String, MSC> name2msc) {
+		MSC[] table = new MSC[grid.size()];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = getOrCreateMSC(grid.getName(i), name2desc, name2msc);
+		}
+
+		return table;
+	}
+
+	/**
+	 * Builds a KdTree per level over the centroids of the cells of every MSC
+	 * in units of latitude and longitude, the ids are grid indices. The
+	 * centroids are computed from the grid instead of taken from the plot
+	 * data, whose mid level coordinates are relative to the parent class.
+	 */
+	private static KdTree[] createCentroidTrees(MSCGrid grid) {
+		KdTree[] trees = new KdTree[grid.getLevels()];
+		for (int level = 0; level < trees.length; level++) {
+			final double[] sumX = new double[grid.size()];
+			final double[] sumY = new double[grid.size()];
+			final long[] cells = new long[grid.size()];
+			grid.forEachBlock(level, new MSCGrid.BlockVisitor() {
+				@Override
+				public void visit(int x, int y, int rows, int columns, int idx) {
+					long area = (long) rows * columns;
+					sumX[idx] += area * (x + (rows - 1) / 2.0);
+					sumY[idx] += area * (y + (columns - 1) / 2.0);
+					cells[idx] += area;
+				}
+			});
+
+			/** the ocean is never a neighbour */
+			int count = 0;
+			for (int idx = 1; idx < cells.length; idx++) {
+				count += cells[idx] > 0 ? 1 : 0;
+			}
+			double[] xs = new double[count];
+			double[] ys = new double[count];
+			int[] ids = new int[count];
+			double resolution = grid.getResolution(level);
+			count = 0;
+			for (int idx = 1; idx < cells.length; idx++) {
+				if (cells[idx] > 0) {
+					xs[count] = sumX[idx] / cells[idx] / resolution;
+					ys[count] = sumY[idx] / cells[idx] / resolution;
+					ids[count++] = idx;
+				}
+			}
+			trees[level] = new KdTree(xs, ys, ids);
+		}
+
+		return trees;
+	}
+
+	private static MSC getOrCreateMSC(String name, Map<String, String> name2desc, Map<String, MSC> name2msc) {
+		MSC msc = name2msc.get(name);
+		if (msc == null) {
+			msc = new MSC(name, describe(name2desc, name));
+			name2msc.put(name, msc);
+		}
+		return msc;
+	}
+
+	/**
+	 * Creates the MSCs returned for the documents of the search index,
+	 * sharing instances with the plot data and the grid where possible.
+	 */
+	private static MSC[] createSearchMSCs(SearchIndex searchIndex, Map<String, String> name2desc,
+			Map<String, MSC> name2msc) {
+		MSC[] table = new MSC[searchIndex.size()];
+		for (int doc = 0; doc < table.length; doc++) {
+			String name = searchIndex.getName(doc);
+			MSC msc = name2msc.get(name);
+			if (msc == null) {
+				msc = new MSC(name, name2desc.get(name));
+				name2msc.put(name, msc);
+			}
+			table[doc] = msc;
+		}
+
+		return table;
+	}
+
+	private static double clamp (double val, double min, double max) {
+		return Math.min(max, Math.max(min, val));
+	}
+
+	/**
+	 * @return the grid row (for a latitude) or column (for a longitude)
+	 *         containing coord on the given level
+	 */
+	private int toCell(double coord, int level) {
+		int resolution = grid.getResolution(level);
+		return Math.min(resolution - 1, (int) (resolution * clamp(coord, 0.0, 1.0) + 0.5));
+	}
+
+	/**
+	 * Resolves a location to the MSC owning it. Datasets with fewer levels
+	 * answer requests for finer levels from their finest level.
+	 *
+	 * If the dataset has MSCPolygons.bin, the levels it covers are answered
+	 * by a point-in-polygon test against the borders drawn on the map rather
+	 * than by the cell of the grid. Only points claimed by several polygons,
+	 * where the traced borders overlap, are left to the grid.
+	 */
+	public MSC getMSCByLocation(double lat, double lng, int level) {
+		level = Math.min(level, grid.getLevels() - 1);
+		if (polygons != null && level < polygons.getLevels()) {
+			int idx = polygons.getIndex(level, clamp(lat, 0.0, 1.0), clamp(lng, 0.0, 1.0));
+			if (idx != MSCPolygons.AMBIGUOUS) {
+				return polygonMSCs[idx];
+			}
+		}
+		return gridMSCs[grid.getIndex(level, toCell(lat, level), toCell(lng, level))];
+	}
+
+	/**
+	 * Like getMSCByLocation(), but resolves locations in the ocean to the
+	 * MSC with the closest centroid on the level.
+	 */
+	public MSC getMSCByLocationOrNearest(double lat, double lng, int level) {
+		MSC msc = getMSCByLocation(lat, lng, level);
+		return msc == gridMSCs[0] ? getNearestMSC(lat, lng, level) : msc;
+	}
+
+	/**
+	 * @return the MSC whose centroid is closest to the location, the ocean
+	 *         only if the level has no MSCs at all
+	 */
+	public MSC getNearestMSC(double lat, double lng, int level) {
+		level = Math.min(level, grid.getLevels() - 1);
+		int idx = centroids[level].nearest(lat, lng);
+		return gridMSCs[Math.max(0, idx)];
+	}
+
+	/**
+	 * @return the k MSCs whose centroids are closest to the location,
+	 *         closest first, with the distances of their centroids
+	 */
+	public MSCNearby getNearbyMSCs(double lat, double lng, int level, int k) {
+		level = Math.min(level, grid.getLevels() - 1);
+		int[] ids = new int[k];
+		double[] distances = new double[k];
+		int count = centroids[level].nearest(lat, lng, ids, distances);
+
+		List<MSC> mscs = new ArrayList<MSC>(count);
+		for (int i = 0; i < count; i++) {
+			mscs.add(gridMSCs[ids[i]]);
+		}
+		return new MSCNearby(mscs, Arrays.copyOf(distances, count));
+	}
+
+	/**
+	 * @return the MSCs sharing a border with the MSC of the given name on its
+	 *         level, sorted by name, null if the dataset has no
+	 *         MSCNeighbors.bin
+	 */
+	public List<MSC> getNeighbors(String name) {
+		if (adjacency == null) {
+			return null;
+		}
+
+		List<MSC> neighbors = new ArrayList<MSC>();
+		for (int level = 0; level < adjacency.getLevels(); ++level) {
+			int idx = adjacency.indexOf(level, name);
+			if (idx >= 0) {
+				int end = adjacency.getEnd(level, idx);
+				for (int i = adjacency.getStart(level, idx); i < end; i++) {
+					neighbors.add(adjacencyMSCs[level][adjacency.getTarget(level, i)]);
+				}
+				break;
+			}
+		}
+		return neighbors;
+	}
+
+	/**
+	 * @return rough size of the centroid trees of all levels on the heap in bytes
+	 */
+	public long estimateCentroidBytes() {
+		long bytes = 0;
+		for (KdTree tree: centroids) {
+			bytes += tree.estimateBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Resolves all cells of a bounding box at once, see MSCRegion. The
+	 * corners may be given in any order.
+	 * @throws IllegalArgumentException if the box has more than
+	 *         MAX_REGION_CELLS cells on the level
+	 */
+	public MSCRegion getRegion(double lat0, double lng0, double lat1, double lng1, int level) {
+		level = Math.min(level, grid.getLevels() - 1);
+		int xFrom = toCell(Math.min(lat0, lat1), level);
+		int xTo = toCell(Math.max(lat0, lat1), level);
+		int yFrom = toCell(Math.min(lng0, lng1), level);
+		int yTo = toCell(Math.max(lng0, lng1), level);
+		long cells = (long) (xTo - xFrom + 1) * (yTo - yFrom + 1);
+		if (cells > MAX_REGION_CELLS) {
+			throw new IllegalArgumentException("Region of " + cells + " cells, at most " + MAX_REGION_CELLS
+					+ " cells per request");
+		}
+
+		/** legend position per grid index, the ocean always comes first */
+		int[] grid2legend = new int[gridMSCs.length];
+		Arrays.fill(grid2legend, -1);
+		List<MSC> legend = new ArrayList<MSC>();
+		grid2legend[0] = 0;
+		legend.add(gridMSCs[0]);
+
+		List<int[]> rows = new ArrayList<int[]>(xTo - xFrom + 1);
+		int[] runs = new int[2 * (yTo - yFrom + 1)];
+		for (int x = xFrom; x <= xTo; x++) {
+			int length = 0;
+			int y = yFrom;
+			while (y <= yTo) {
+				int idx = grid.getIndex(level, x, y);
+				int start = y;
+				while (y <= yTo && grid.getIndex(level, x, y) == idx) {
+					y++;
+				}
+				if (grid2legend[idx] < 0) {
+					grid2legend[idx] = legend.size();
+					legend.add(gridMSCs[idx]);
+				}
+				runs[length++] = grid2legend[idx];
+				runs[length++] = y - start;
+			}
+			rows.add(Arrays.copyOf(runs, length));
+		}
+
+		return new MSCRegion(grid.getResolution(level), level, xFrom, yFrom, yTo - yFrom + 1, legend, rows);
+	}
+
+	/**
+	 * Ranked search over all MSC descriptions, see SearchIndex.
+	 * @return the best matches, best first
+	 */
+	public List<MSC> getMSCsByString(String str, int limit) {
+		return toMSCs(searchIndex.search(str, limit));
+	}
+
+	/**
+	 * Type-ahead completion of MSC codes and description words, see
+	 * SuggestIndex.
+	 * @return the suggestions, most general first
+	 */
+	public List<MSC> getSuggestions(String prefix, int limit) {
+		return toMSCs(suggestIndex.suggest(prefix, limit));
+	}
+
+	private List<MSC> toMSCs(int[] docs) {
+		List<MSC> result = new ArrayList<MSC>(docs.length);
+		for (int doc: docs) {
+			result.add(searchMSCs[doc]);
+		}
+
+		return result;
+	}
+
+	public File getDataDir() {
+		return dataDir;
+	}
+
+	public MSCGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * @return the border polygons, null if the dataset has no MSCPolygons.bin
+	 */
+	public MSCPolygons getPolygons() {
+		return polygons;
+	}
+
+	/**
+	 * @return which MSCs share a border, null if the dataset has no
+	 *         MSCNeighbors.bin
+	 */
+	public MSCAdjacency getAdjacency() {
+		return adjacency;
+	}
+
+	public Map<String, String> getDescriptions() {
+		return name2desc;
+	}
+
+	public MSC getMSC(String name) {
+		return name2msc.get(name);
+	}
+
+	public List<MSC> getMSCs() {
+		return mscs;
+	}
+
+	public SearchIndex getSearchIndex() {
+		return searchIndex;
+	}
+
+	public SuggestIndex getSuggestIndex() {
+		return suggestIndex;
+	}
+
+	/**
+	 * @return the pre-rendered JSON of the MSCs of this snapshot
+	 */
+	public ResponseCache getResponses() {
+		return responses;
+	}
+}
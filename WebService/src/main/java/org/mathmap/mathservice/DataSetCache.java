@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Size-bounded LRU cache of the yearly and cumulative datasets, i.e. the
+ * subdirectories of the data directory (data/1978, data/cuml1986, ...).
+ * Datasets are loaded lazily on first use. Whenever a dataset is requested,
+ * the previous and next year of the same series are loaded in the
+ * background, so moving along the timeline rarely has to wait. A request
+ * for a dataset that is still queued for prefetching loads it right away.
+ *
+ * The subdirectories are listed once when the cache is created, so
+ * requests do not touch the file system to check a dataset name.
+ * DataSetManager creates a new cache on every reload, which picks up added
+ * and removed directories.
+ */
+public class DataSetCache {
+	private static final Logger LOGGER = Logger.getLogger(DataSetCache.class.getName());
+
+	/** dataset names are used as directory names, so only allow harmless characters */
+	private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+	/** splits names like cuml1986 into series (cuml) and year (1986) */
+	private static final Pattern SERIES_YEAR = Pattern.compile("(\\D*)(\\d{1,4})");
+
+	private final File dataDir;
+	/** names of the subdirectories of dataDir which are valid dataset names */
+	private final Set<String> names;
+	private final DataSet parent;
+	private final int capacity;
+	private final ExecutorService prefetcher;
+	private final Map<String, FutureTask<DataSet>> entries;
+
+	/**
+	 * @param dataDir    directory whose subdirectories are the datasets
+	 * @param parent     default dataset whose descriptions and search index are shared
+	 * @param capacity   maximum number of datasets kept in memory
+	 * @param prefetcher executor used to load adjacent years
+	 */
+	public DataSetCache(File dataDir, DataSet parent, final int capacity, ExecutorService prefetcher) {
+		this.dataDir = dataDir;
+		this.names = listDataSets(dataDir);
+		this.parent = parent;
+		this.capacity = capacity;
+		this.prefetcher = prefetcher;
+		this.entries = new LinkedHashMap<String, FutureTask<DataSet>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FutureTask<DataSet>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	private static Set<String> listDataSets(File dataDir) {
+		Set<String> names = new HashSet<String>();
+		File[] subDirs = dataDir.listFiles();
+		if (subDirs != null) {
+			for (File subDir: subDirs) {
+				if (subDir.isDirectory() && VALID_NAME.matcher(subDir.getName()).matches()) {
+					names.add(subDir.getName());
+				}
+			}
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * @return number of datasets loaded or being loaded
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @return true if name refers to a dataset directory which existed when
+	 *         the cache was created
+	 */
+	public boolean exists(String name) {
+		return names.contains(name);
+	}
+
+	/**
+	 * Returns a dataset, loading it if necessary, and prefetches its
+	 * neighbors.
+	 * @return the dataset, or null if there is no such dataset
+	 */
+	public DataSet get(String name) throws IOException {
+		if (!exists(name)) {
+			return null;
+		}
+
+		FutureTask<DataSet> task;
+		boolean created = false;
+		synchronized (entries) {
+			task = entries.get(name);
+			if (task == null) {
+				task = createTask(name);
+				entries.put(name, task);
+				created = true;
+			}
+		}
+
+		if (created) {
+			Metrics.DATASET_CACHE_MISSES.incrementAndGet();
+		} else {
+			Metrics.DATASET_CACHE_HITS.incrementAndGet();
+		}
+
+		/**
+		 * A prefetched entry may still be queued behind other prefetches, so load
+		 * it here; run() does nothing if the task has already been started.
+		 */
+		task.run();
+
+		DataSet dataSet = await(name, task);
+		prefetchNeighbors(name);
+		return dataSet;
+	}
+
+	private FutureTask<DataSet> createTask(final String name) {
+		return new FutureTask<DataSet>(new Callable<DataSet>() {
+			@Override
+			public DataSet call() throws IOException {
+				return DataSet.load(new File(dataDir, name), parent);
+			}
+		});
+	}
+
+	private DataSet await(String name, FutureTask<DataSet> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading dataset " + name, e);
+		} catch (ExecutionException e) {
+			/** do not cache failures, the files might be fixed by the next request */
+			synchronized (entries) {
+				if (entries.get(name) == task) {
+					entries.remove(name);
+				}
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not load dataset " + name, e.getCause());
+		}
+	}
+
+	private void prefetchNeighbors(String name) {
+		/** the two neighbors would evict the dataset that was just requested */
+		if (capacity < 3) {
+			return;
+		}
+
+		Matcher matcher = SERIES_YEAR.matcher(name);
+		if (!matcher.matches()) {
+			return;
+		}
+
+		String series = matcher.group(1);
+		int year = Integer.parseInt(matcher.group(2));
+		prefetch(series + (year - 1));
+		prefetch(series + (year + 1));
+	}
+
+	private void prefetch(final String name) {
+		if (!exists(name)) {
+			return;
+		}
+
+		final FutureTask<DataSet> task;
+		synchronized (entries) {
+			if (entries.containsKey(name)) {
+				return;
+			}
+			task = createTask(name);
+			entries.put(name, task);
+		}
+
+		Metrics.DATASET_PREFETCHES.incrementAndGet();
+		try {
+			prefetcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					task.run();
+					try {
+						await(name, task);
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Prefetching dataset " + name + " failed", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			/** the manager is shutting down, whoever needs the dataset will load it */
+			synchronized (entries) {
+				if (entries.get(name) == task) {
+					entries.remove(name);
+				}
+			}
+		}
+	}
+}
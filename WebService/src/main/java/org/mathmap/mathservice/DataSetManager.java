@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the DataSet currently served by the webservice. It is created once
+ * per application by start(), which loads the initial snapshot before the
+ * first request is answered.
+ *
+ * If watching is enabled, a background thread observes the data directory.
+ * Once it has been quiet for a moment, the next snapshot is built on that
+ * thread and published with a single atomic swap. Requests keep using the
+ * previous snapshot until then, and if loading fails (e.g. because files
+ * are only half copied) the previous snapshot simply stays in place.
+ *
+ * The yearly and cumulative datasets in the subdirectories of the data
+ * directory are served through a DataSetCache, which is replaced by an
+ * empty one on every reload. The default dataset and the cache are
+ * published together in one Snapshot, so a request never combines the
+ * new default dataset with the old cache or vice versa.
+ */
+public class DataSetManager {
+	private static final Logger LOGGER = Logger.getLogger(DataSetManager.class.getName());
+
+	/** time the data directory has to be quiet before a reload starts */
+	private static final long RELOAD_DELAY_MS = 2000;
+
+	private static volatile DataSetManager instance;
+
+	private final File dataDir;
+	private final int maxDataSets;
+	private final ZoomLevels zoomLevels;
+	private volatile Snapshot snapshot;
+	private final ExecutorService prefetcher;
+	private Thread watcher;
+
+	/**
+	 * The default dataset together with the cache of the yearly and
+	 * cumulative datasets loaded alongside it.
+	 */
+	private static final class Snapshot {
+		private final DataSet current;
+		private final DataSetCache datasets;
+
+		private Snapshot(DataSet current, DataSetCache datasets) {
+			this.current = current;
+			this.datasets = datasets;
+		}
+	}
+
+	private DataSetManager(File dataDir, int maxDataSets, ZoomLevels zoomLevels) {
+		this.dataDir = dataDir;
+		this.maxDataSets = maxDataSets;
+		this.zoomLevels = zoomLevels;
+		this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "DataSetManager-prefetcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Loads the data directory and makes the manager available through
+	 * getInstance().
+	 * @param dataDir     directory containing the data files
+	 * @param watch       whether to reload automatically when files change
+	 * @param maxDataSets maximum number of yearly/cumulative datasets kept in memory
+	 */
+	public static DataSetManager start(File dataDir, boolean watch, int maxDataSets) throws IOException {
+		return start(dataDir, watch, maxDataSets, ZoomLevels.DEFAULT);
+	}
+
+	/**
+	 * See start(File, boolean, int).
+	 * @param zoomLevels mapping of the zoom of the map to the levels of the grid
+	 */
+	public static synchronized DataSetManager start(File dataDir, boolean watch, int maxDataSets,
+			ZoomLevels zoomLevels) throws IOException {
+		if (instance != null) {
+			throw new IllegalStateException("DataSetManager already started");
+		}
+
+		DataSetManager manager = new DataSetManager(dataDir, maxDataSets, zoomLevels);
+		manager.reload();
+		if (watch) {
+			manager.startWatching();
+		}
+
+		instance = manager;
+		return manager;
+	}
+
+	/**
+	 * Stops watching and releases the manager, see start().
+	 */
+	public static synchronized void stop() {
+		if (instance != null) {
+			if (instance.watcher != null) {
+				instance.watcher.interrupt();
+			}
+			instance.prefetcher.shutdownNow();
+			instance = null;
+		}
+	}
+
+	public static DataSetManager getInstance() {
+		DataSetManager manager = instance;
+		if (manager == null) {
+			throw new IllegalStateException("DataSetManager has not been started");
+		}
+		return manager;
+	}
+
+	/**
+	 * @return the current snapshot, never null
+	 */
+	public DataSet get() {
+		return snapshot.current;
+	}
+
+	/**
+	 * Returns the snapshot of a yearly or cumulative dataset.
+	 * @param dataset name of the dataset, null or empty for the default one
+	 * @return the snapshot, or null if there is no such dataset
+	 */
+	public DataSet get(String dataset) throws IOException {
+		Snapshot snapshot = this.snapshot;
+		if (dataset == null || dataset.isEmpty()) {
+			return snapshot.current;
+		}
+		return snapshot.datasets.get(dataset);
+	}
+
+	public File getDataDir() {
+		return dataDir;
+	}
+
+	public ZoomLevels getZoomLevels() {
+		return zoomLevels;
+	}
+
+	/**
+	 * @return number of yearly/cumulative datasets currently kept in memory
+	 */
+	public int getCachedDataSetCount() {
+		return snapshot.datasets.size();
+	}
+
+	/**
+	 * Builds a new snapshot on the calling thread and publishes it.
+	 */
+	public void reload() throws IOException {
+		long start = System.nanoTime();
+		DataSet next = DataSet.load(dataDir);
+		snapshot = new Snapshot(next, new DataSetCache(dataDir, next, maxDataSets, prefetcher));
+		Metrics.RELOADS.incrementAndGet();
+		LOGGER.info(String.format("Loaded %s in %d ms", dataDir,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+	}
+
+	private void startWatching() throws IOException {
+		final WatchService watchService = FileSystems.getDefault().newWatchService();
+		register(watchService, dataDir);
+		File[] subDirs = dataDir.listFiles();
+		if (subDirs != null) {
+			for (File subDir: subDirs) {
+				if (subDir.isDirectory()) {
+					register(watchService, subDir);
+				}
+			}
+		}
+
+		watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					watch(watchService);
+				} finally {
+					try {
+						watchService.close();
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Could not close watch service", e);
+					}
+				}
+			}
+		}, "DataSetManager-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	private static void register(WatchService watchService, File dir) throws IOException {
+		dir.toPath().register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+	}
+
+	/**
+	 * Consumes the pending events of a key and starts watching newly created
+	 * dataset directories.
+	 */
+	private void handleEvents(WatchKey key, WatchService watchService) {
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event: key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && dir.equals(dataDir.toPath())) {
+				File created = dir.resolve((Path) event.context()).toFile();
+				if (created.isDirectory()) {
+					try {
+						register(watchService, created);
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Could not watch " + created, e);
+					}
+				}
+			}
+		}
+		key.reset();
+	}
+
+	private void watch(WatchService watchService) {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watchService.take();
+				handleEvents(key, watchService);
+
+				/** wait until the directory has been quiet, so we do not load half-written files */
+				key = watchService.poll(RELOAD_DELAY_MS, TimeUnit.MILLISECONDS);
+				while (key != null) {
+					handleEvents(key, watchService);
+					key = watchService.poll(RELOAD_DELAY_MS, TimeUnit.MILLISECONDS);
+				}
+
+				try {
+					reload();
+				} catch (Exception e) {
+					Metrics.RELOAD_FAILURES.incrementAndGet();
+					LOGGER.log(Level.WARNING, "Reloading " + dataDir + " failed, keeping previous data", e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			/** stop() was called */
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+/**
+ * Static 2-d tree over points for nearest neighbour queries. The tree is
+ * implicit: the points are permuted so that the median of every range
+ * (along x on even depths, along y on odd ones) sits in the middle of the
+ * range, with the smaller points before and the larger ones after it. A
+ * query descends into the half containing the point first and only visits
+ * the other half if it may hold a closer point, which takes O(log n) steps
+ * for the nearest point on average.
+ */
+public class KdTree {
+	private final double[] xs;
+	private final double[] ys;
+	private final int[] ids;
+
+	/**
+	 * Builds the tree, the arrays are copied.
+	 * @param xs  x of every point
+	 * @param ys  y of every point
+	 * @param ids id returned for every point
+	 */
+	public KdTree(double[] xs, double[] ys, int[] ids) {
+		this.xs = xs.clone();
+		this.ys = ys.clone();
+		this.ids = ids.clone();
+		build(0, ids.length, 0);
+	}
+
+	private void build(int from, int to, int depth) {
+		if (to - from <= 1) {
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, depth & 1);
+		build(from, mid, depth + 1);
+		build(mid + 1, to, depth + 1);
+	}
+
+	private double coord(int i, int axis) {
+		return axis == 0 ? xs[i] : ys[i];
+	}
+
+	/**
+	 * Quickselect: moves the k-th smallest point of [lo, hi] along axis to
+	 * position k, smaller ones before and larger ones after it.
+	 */
+	private void select(int lo, int hi, int k, int axis) {
+		while (lo < hi) {
+			double pivot = coord((lo + hi) >>> 1, axis);
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (coord(i, axis) < pivot) {
+					i++;
+				}
+				while (coord(j, axis) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		double x = xs[i];
+		xs[i] = xs[j];
+		xs[j] = x;
+		double y = ys[i];
+		ys[i] = ys[j];
+		ys[j] = y;
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return rough size of the tree on the heap in bytes
+	 */
+	public long estimateBytes() {
+		return 20L * ids.length;
+	}
+
+	/**
+	 * @return id of the point closest to (x, y), -1 if the tree is empty
+	 */
+	public int nearest(double x, double y) {
+		int[] result = new int[1];
+		return nearest(x, y, result, new double[1]) == 1 ? result[0] : -1;
+	}
+
+	/**
+	 * Finds the points closest to (x, y), as many as fit into ids.
+	 * @param ids       receives the ids of the points, closest first
+	 * @param distances receives the euclidean distances of the points
+	 * @return number of points found, less than ids.length only if the tree
+	 *         has fewer points
+	 */
+	public int nearest(double x, double y, int[] ids, double[] distances) {
+		Neighbours neighbours = new Neighbours(Math.min(ids.length, size()));
+		if (neighbours.capacity > 0) {
+			search(0, size(), 0, x, y, neighbours);
+		}
+
+		/** the heap yields the farthest point first */
+		int count = neighbours.size;
+		for (int i = count - 1; i >= 0; i--) {
+			ids[i] = this.ids[neighbours.points[0]];
+			distances[i] = Math.sqrt(neighbours.distances[0]);
+			neighbours.poll();
+		}
+		return count;
+	}
+
+	private void search(int from, int to, int depth, double x, double y, Neighbours neighbours) {
+		if (from >= to) {
+			return;
+		}
+
+		int mid = (from + to) >>> 1;
+		double dx = xs[mid] - x;
+		double dy = ys[mid] - y;
+		neighbours.offer(mid, dx * dx + dy * dy);
+
+		double diff = (depth & 1) == 0 ? x - xs[mid] : y - ys[mid];
+		if (diff < 0) {
+			search(from, mid, depth + 1, x, y, neighbours);
+			if (diff * diff < neighbours.bound()) {
+				search(mid + 1, to, depth + 1, x, y, neighbours);
+			}
+		} else {
+			search(mid + 1, to, depth + 1, x, y, neighbours);
+			if (diff * diff < neighbours.bound()) {
+				search(from, mid, depth + 1, x, y, neighbours);
+			}
+		}
+	}
+
+	/**
+	 * The k closest points seen so far, as max-heap on the squared distance.
+	 */
+	private static class Neighbours {
+		private final int capacity;
+		private final int[] points;
+		private final double[] distances;
+		private int size = 0;
+
+		Neighbours(int capacity) {
+			this.capacity = capacity;
+			points = new int[capacity];
+			distances = new double[capacity];
+		}
+
+		/**
+		 * @return squared distance a point has to beat to be added
+		 */
+		double bound() {
+			return size < capacity ? Double.POSITIVE_INFINITY : distances[0];
+		}
+
+		void offer(int point, double distance) {
+			if (size < capacity) {
+				int i = size++;
+				while (i > 0 && distances[(i - 1) / 2] < distance) {
+					points[i] = points[(i - 1) / 2];
+					distances[i] = distances[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				points[i] = point;
+				distances[i] = distance;
+			} else if (distance < distances[0]) {
+				siftDown(point, distance, size);
+			}
+		}
+
+		void poll() {
+			size--;
+			if (size > 0) {
+				siftDown(points[size], distances[size], size);
+			}
+		}
+
+		/**
+		 * Replaces the root by (point, distance) and restores the heap of the
+		 * first n entries.
+		 */
+		private void siftDown(int point, double distance, int n) {
+			int i = 0;
+			while (2 * i + 1 < n) {
+				int child = 2 * i + 1;
+				if (child + 1 < n && distances[child + 1] > distances[child]) {
+					child++;
+				}
+				if (distances[child] <= distance) {
+					break;
+				}
+				points[i] = points[child];
+				distances[i] = distances[child];
+				i = child;
+			}
+			points[i] = point;
+			distances[i] = distance;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations. The bucket bounds grow by a factor of
+ * sqrt(2) from 1 microsecond to about 16 seconds, so quantiles can be
+ * estimated with an error of at most 41%. Recording a duration is a binary
+ * search over the bounds plus two atomic increments.
+ */
+public class LatencyHistogram {
+	private static final long MIN_BOUND_NANOS = 1000;
+	private static final int BUCKETS = 49;
+
+	/** inclusive upper bounds of the buckets in nanoseconds, the last bucket is unbounded */
+	private static final long[] BOUNDS = new long[BUCKETS];
+	static {
+		for (int i = 0; i < BUCKETS; i++) {
+			BOUNDS[i] = Math.round(MIN_BOUND_NANOS * Math.pow(2.0, i / 2.0));
+		}
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+	private final AtomicLong sumNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		int lo = 0;
+		int hi = BUCKETS;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BOUNDS[mid] < nanos) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		counts.incrementAndGet(lo);
+		sumNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records the time elapsed since start, as returned by System.nanoTime().
+	 */
+	public void recordSince(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i <= BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return upper bound of the bucket containing quantile q in seconds,
+	 *         NaN if nothing has been recorded
+	 */
+	public double getQuantile(double q) {
+		long[] snapshot = snapshot();
+		long count = 0;
+		for (long c: snapshot) {
+			count += c;
+		}
+		if (count == 0) {
+			return Double.NaN;
+		}
+
+		long rank = (long) Math.ceil(q * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return BOUNDS[i] / 1e9;
+			}
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+
+	private long[] snapshot() {
+		long[] snapshot = new long[BUCKETS + 1];
+		for (int i = 0; i <= BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Appends the histogram in the Prometheus text format, without HELP and
+	 * TYPE lines.
+	 * @param labels label pairs, e.g. endpoint="mscquery"
+	 */
+	public void write(StringBuilder out, String name, String labels) {
+		long[] snapshot = snapshot();
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			cumulative += snapshot[i];
+			out.append(name).append("_bucket{").append(labels).append(",le=\"")
+				.append(Metrics.format(BOUNDS[i] / 1e9)).append("\"} ").append(cumulative).append('\n');
+		}
+		cumulative += snapshot[BUCKETS];
+		out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+		out.append(name).append("_sum{").append(labels).append("} ")
+			.append(Metrics.format(sumNanos.get() / 1e9)).append('\n');
+		out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "count=%d p50=%s p99=%s p999=%s", getCount(),
+				getQuantile(0.5), getQuantile(0.99), getQuantile(0.999));
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Which MSCs share a border on the map (MSCNeighbors.bin), one graph per
+ * level as written by the MapGeneration project. The graphs are kept in
+ * compressed sparse row form: the neighbours of MSC idx of a level are
+ * getTarget(level, i) for getStart(level, idx) <= i < getEnd(level, idx),
+ * so listing them takes O(degree). Unlike the grid and the polygons the
+ * file is small, it is read onto the heap.
+ */
+public class MSCAdjacency {
+	public static final int MAGIC = 0x4F4D4D41;
+	public static final int VERSION = 1;
+
+	private final String[][] names;
+	private final List<Map<String, Integer>> name2idx;
+	private final int[][] offsets;
+	private final int[][] targets;
+
+	private MSCAdjacency(String[][] names, int[][] offsets, int[][] targets) {
+		this.names = names;
+		this.offsets = offsets;
+		this.targets = targets;
+
+		name2idx = new ArrayList<Map<String, Integer>>(names.length);
+		for (int level = 0; level < names.length; ++level) {
+			Map<String, Integer> levelIdx = new HashMap<String, Integer>();
+			for (int i = 0; i < names[level].length; i++) {
+				levelIdx.put(names[level][i], i);
+			}
+			name2idx.add(levelIdx);
+		}
+	}
+
+	/**
+	 * Reads an adjacency file.
+	 */
+	public static MSCAdjacency read(File neighborsFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(neighborsFile, "r");
+		MappedByteBuffer buffer;
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(neighborsFile + " is not a binary MSC adjacency file");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException(neighborsFile + " has unsupported version " + version);
+			}
+
+			int levels = buffer.getInt();
+			String[][] names = new String[levels][];
+			int[][] offsets = new int[levels][];
+			int[][] targets = new int[levels][];
+			for (int level = 0; level < levels; ++level) {
+				names[level] = new String[buffer.getInt()];
+				for (int i = 0; i < names[level].length; i++) {
+					names[level][i] = MSCGrid.readUTF(buffer);
+				}
+
+				targets[level] = new int[buffer.getInt()];
+				offsets[level] = new int[names[level].length + 1];
+				IntBuffer ints = buffer.asIntBuffer();
+				ints.get(offsets[level]);
+				ints.get(targets[level]);
+				buffer.position(buffer.position() + 4 * (offsets[level].length + targets[level].length));
+
+				for (int i = 0; i < names[level].length; i++) {
+					if (offsets[level][i] < 0 || offsets[level][i] > offsets[level][i + 1]) {
+						throw new IOException(neighborsFile + " has invalid offsets on level " + level);
+					}
+				}
+				if (offsets[level][names[level].length] != targets[level].length) {
+					throw new IOException(neighborsFile + " has invalid offsets on level " + level);
+				}
+				for (int target: targets[level]) {
+					if (target < 0 || target >= names[level].length) {
+						throw new IOException(neighborsFile + " has an invalid neighbour on level " + level);
+					}
+				}
+			}
+
+			if (buffer.hasRemaining()) {
+				throw new IOException(neighborsFile + " has " + buffer.remaining() + " bytes too many");
+			}
+
+			return new MSCAdjacency(names, offsets, targets);
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+			throw new IOException(neighborsFile + " is truncated", e);
+		}
+	}
+
+	public int getLevels() {
+		return names.length;
+	}
+
+	/**
+	 * @return number of MSCs with at least one neighbour on the level
+	 */
+	public int size(int level) {
+		return names[level].length;
+	}
+
+	public String getName(int level, int idx) {
+		return names[level][idx];
+	}
+
+	/**
+	 * @return index of the MSC on the level, -1 if it has no neighbours
+	 *         there
+	 */
+	public int indexOf(int level, String name) {
+		Integer idx = name2idx.get(level).get(name);
+		return idx != null ? idx : -1;
+	}
+
+	/**
+	 * @return position of the first neighbour of MSC idx
+	 */
+	public int getStart(int level, int idx) {
+		return offsets[level][idx];
+	}
+
+	/**
+	 * @return position after the last neighbour of MSC idx
+	 */
+	public int getEnd(int level, int idx) {
+		return offsets[level][idx + 1];
+	}
+
+	/**
+	 * @return index of the neighbour at position i
+	 */
+	public int getTarget(int level, int i) {
+		return targets[level][i];
+	}
+
+	/**
+	 * @return rough size of the graphs and the name lookup on the heap in bytes
+	 */
+	public long estimateBytes() {
+		long bytes = 0;
+		for (int level = 0; level < names.length; ++level) {
+			bytes += 4L * (offsets[level].length + targets[level].length);
+			for (String name: names[level]) {
+				/** the name plus a HashMap entry with a boxed index */
+				bytes += Metrics.estimateBytes(name) + 56;
+			}
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Result of a batch lookup of many locations. Every distinct MSC is listed
+ * once in mscs, and indices holds for each requested point (in request
+ * order) the position of its MSC in that list.
+ */
+package mathservice;
+
+import java.util.*;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement
+@XmlType(propOrder = {"mscs", "indices"})
+public class MSCBatch {
+	private List<MSC> mscs;
+	private int[] indices;
+
+	public MSCBatch() {
+		this(new ArrayList<MSC>(), new int[0]);
+	}
+
+	public MSCBatch(List<MSC> mscs, int[] indices) {
+		this.mscs = mscs;
+		this.indices = indices;
+	}
+
+	/**
+	 * Builds the batch result for a list of MSCs, one per requested point.
+	 */
+	public static MSCBatch of(MSC[] results) {
+		List<MSC> mscs = new ArrayList<MSC>();
+		Map<MSC, Integer> msc2idx = new IdentityHashMap<MSC, Integer>();
+		int[] indices = new int[results.length];
+		for (int i = 0; i < results.length; i++) {
+			Integer idx = msc2idx.get(results[i]);
+			if (idx == null) {
+				idx = mscs.size();
+				mscs.add(results[i]);
+				msc2idx.put(results[i], idx);
+			}
+			indices[i] = idx;
+		}
+
+		return new MSCBatch(mscs, indices);
+	}
+
+	@XmlElement
+	public List<MSC> getMscs() {
+		return mscs;
+	}
+
+	@XmlElement
+	public int[] getIndices() {
+		return indices;
+	}
+}
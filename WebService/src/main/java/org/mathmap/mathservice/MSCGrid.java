@@ -0,0 +1,333 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Read-only view of a binary MSC grid (MSCGrid.bin) as written by the
+ * MapGeneration project. The file consists of a dictionary of MSC names
+ * followed by the cells of every level as indices into that dictionary.
+ * The file is memory-mapped, so the cells live off-heap and loading only
+ * needs to read the header and the dictionary.
+ *
+ * Every level has its own resolution and is stored either densely, one
+ * short per cell, or as a region quadtree which only subdivides squares
+ * owned by more than one MSC (see MSCGridFile for the layout). Quadtrees
+ * allow fine levels, e.g. the five digit MSCs, without a dense grid: a
+ * lookup descends at most log2(resolution) nodes.
+ *
+ * Grids parsed from the MSCGrid*.csv files use the same dictionary encoding
+ * with one flat short[] per level on the heap.
+ */
+public class MSCGrid {
+	public static final int MAGIC = 0x4F4D4D47;
+	public static final int VERSION = 2;
+
+	/** encodings of a level in version 2 */
+	private static final int DENSE = 0;
+	private static final int QUADTREE = 1;
+
+	private final int[] resolutions;
+	private final int levels;
+	private final String[] names;
+	/** cells of the dense levels, null for quadtree levels */
+	private final ShortBuffer[] cells;
+	/** nodes of the quadtree levels, null for dense levels */
+	private final IntBuffer[] trees;
+	private final boolean mapped;
+
+	private MSCGrid(int[] resolutions, String[] names, ShortBuffer[] cells, IntBuffer[] trees, boolean mapped) {
+		this.resolutions = resolutions;
+		this.levels = resolutions.length;
+		this.names = names;
+		this.cells = cells;
+		this.trees = trees;
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Memory-maps a binary grid file.
+	 */
+	public static MSCGrid map(File gridFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(gridFile, "r");
+		MappedByteBuffer buffer;
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException(gridFile + " is not a binary MSC grid");
+		}
+		int version = buffer.getInt();
+		if (version != 1 && version != VERSION) {
+			throw new IOException(gridFile + " has unsupported version " + version);
+		}
+
+		int resolution = buffer.getInt();
+		int levels = buffer.getInt();
+		String[] names = new String[buffer.getInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = readUTF(buffer);
+		}
+
+		int[] resolutions = new int[levels];
+		ShortBuffer[] cells = new ShortBuffer[levels];
+		IntBuffer[] trees = new IntBuffer[levels];
+		try {
+			for (int level = 0; level < levels; ++level) {
+				/** version 1 has dense levels of the same resolution only */
+				int encoding = DENSE;
+				resolutions[level] = resolution;
+				if (version > 1) {
+					resolutions[level] = buffer.getInt();
+					encoding = buffer.getInt();
+				}
+
+				if (encoding == DENSE) {
+					cells[level] = slice(buffer, 2 * resolutions[level] * resolutions[level]).asShortBuffer();
+				} else if (encoding == QUADTREE && Integer.bitCount(resolutions[level]) == 1) {
+					int nodes = buffer.getInt();
+					trees[level] = slice(buffer, 4 * nodes).asIntBuffer();
+				} else {
+					throw new IOException(gridFile + " has an invalid encoding of level " + level);
+				}
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException(gridFile + " is truncated", e);
+		}
+
+		if (buffer.hasRemaining()) {
+			throw new IOException(gridFile + " has " + buffer.remaining() + " bytes too many");
+		}
+
+		return new MSCGrid(resolutions, names, cells, trees, true);
+	}
+
+	/**
+	 * @return the next length bytes of buffer, which is advanced past them
+	 */
+	static ByteBuffer slice(ByteBuffer buffer, int length) {
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * Parses MSCGrid0.csv, MSCGrid1.csv, ... (one file per level) into a
+	 * dictionary-encoded grid. The resolution is the number of rows of the
+	 * first file, index 0 is always "null".
+	 */
+	public static MSCGrid parseCSV(File[] csvFiles) throws IOException {
+		List<String> names = new ArrayList<String>();
+		Map<String, Short> name2idx = new HashMap<String, Short>();
+		names.add("null");
+		name2idx.put("null", (short) 0);
+
+		int resolution = -1;
+		ShortBuffer[] cells = new ShortBuffer[csvFiles.length];
+		for (int level = 0; level < csvFiles.length; ++level) {
+			List<String> lines = new ArrayList<String>();
+			BufferedReader br = new BufferedReader(new FileReader(csvFiles[level]));
+			String line = br.readLine();
+			while (line != null) {
+				lines.add(line);
+				line = br.readLine();
+			}
+			br.close();
+
+			if (resolution < 0) {
+				resolution = lines.size();
+			} else if (lines.size() != resolution) {
+				throw new IOException(csvFiles[level] + " has " + lines.size() + " rows, expected " + resolution);
+			}
+
+			short[] levelCells = new short[resolution * resolution];
+			for (int i = 0; i < resolution; i++) {
+				String tokens[] = lines.get(i).split(";");
+				if (tokens.length != resolution) {
+					throw new IOException(csvFiles[level] + ":" + (i + 1) + " has " + tokens.length
+							+ " columns, expected " + resolution);
+				}
+				for (int j = 0; j < resolution; j++) {
+					Short idx = name2idx.get(tokens[j]);
+					if (idx == null) {
+						if (names.size() > Short.MAX_VALUE) {
+							throw new IOException(csvFiles[level] + " has too many distinct MSCs");
+						}
+						idx = (short) names.size();
+						names.add(tokens[j]);
+						name2idx.put(tokens[j], idx);
+					}
+					levelCells[i * resolution + j] = idx;
+				}
+			}
+			cells[level] = ShortBuffer.wrap(levelCells);
+		}
+
+		int[] resolutions = new int[csvFiles.length];
+		Arrays.fill(resolutions, resolution);
+		return new MSCGrid(resolutions, names.toArray(new String[names.size()]), cells,
+				new IntBuffer[csvFiles.length], false);
+	}
+
+	/**
+	 * Counterpart of DataOutputStream.writeUTF() for a ByteBuffer. MSC names
+	 * are plain ASCII, so we do not need to handle modified UTF-8 here.
+	 */
+	static String readUTF(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return resolution of the top level
+	 */
+	public int getResolution() {
+		return resolutions[0];
+	}
+
+	public int getResolution(int level) {
+		return resolutions[level];
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	/**
+	 * @return number of distinct names in the dictionary
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int idx) {
+		return names[idx];
+	}
+
+	/**
+	 * @return true if the cells are memory-mapped from MSCGrid.bin rather
+	 *         than held on the heap
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * @return size of the cells and quadtree nodes of all levels in bytes
+	 */
+	public long getCellBytes() {
+		long bytes = 0;
+		for (int level = 0; level < levels; level++) {
+			bytes += cells[level] != null ? 2L * cells[level].capacity() : 4L * trees[level].capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return dictionary index of the MSC owning cell (x, y) on the given level,
+	 *         the coordinates refer to the resolution of that level
+	 */
+	public int getIndex(int level, int x, int y) {
+		if (cells[level] != null) {
+			return cells[level].get(x * resolutions[level] + y);
+		}
+
+		/** descend into the quadrant containing (x, y) until reaching a leaf */
+		IntBuffer tree = trees[level];
+		int node = tree.get(0);
+		for (int half = resolutions[level] >> 1; node < 0; half >>= 1) {
+			int quadrant = ((x & half) != 0 ? 2 : 0) | ((y & half) != 0 ? 1 : 0);
+			node = tree.get(quadrant - node);
+		}
+		return node;
+	}
+
+	/**
+	 * Called for every block of cells of a level owned by a single MSC.
+	 */
+	public interface BlockVisitor {
+		/**
+		 * @param x       row of the first cell of the block
+		 * @param y       column of the first cell of the block
+		 * @param rows    number of rows of the block
+		 * @param columns number of columns of the block
+		 * @param idx     dictionary index of the MSC owning the block
+		 */
+		void visit(int x, int y, int rows, int columns, int idx);
+	}
+
+	/**
+	 * Visits all cells of a level in blocks owned by a single MSC: runs
+	 * within a row for dense levels and the leaves for quadtree levels. The
+	 * blocks do not overlap and cover the level.
+	 */
+	public void forEachBlock(int level, BlockVisitor visitor) {
+		int resolution = resolutions[level];
+		if (cells[level] != null) {
+			ShortBuffer levelCells = cells[level].duplicate();
+			short[] row = new short[resolution];
+			for (int x = 0; x < resolution; x++) {
+				levelCells.position(x * resolution);
+				levelCells.get(row);
+				int y = 0;
+				while (y < resolution) {
+					int start = y;
+					while (y < resolution && row[y] == row[start]) {
+						y++;
+					}
+					visitor.visit(x, start, 1, y - start, row[start]);
+				}
+			}
+		} else {
+			forEachBlock(trees[level], trees[level].get(0), 0, 0, resolution, visitor);
+		}
+	}
+
+	private static void forEachBlock(IntBuffer tree, int node, int x, int y, int side, BlockVisitor visitor) {
+		if (node >= 0) {
+			visitor.visit(x, y, side, side, node);
+			return;
+		}
+
+		int half = side >> 1;
+		forEachBlock(tree, tree.get(-node), x, y, half, visitor);
+		forEachBlock(tree, tree.get(1 - node), x, y + half, half, visitor);
+		forEachBlock(tree, tree.get(2 - node), x + half, y, half, visitor);
+		forEachBlock(tree, tree.get(3 - node), x + half, y + half, half, visitor);
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Result of a nearby query: the MSCs whose centroids are closest to a
+ * location, closest first, and per MSC the distance of its centroid in
+ * the units of latitude and longitude.
+ */
+package mathservice;
+
+import java.util.*;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement
+@XmlType(propOrder = {"mscs", "distances"})
+public class MSCNearby {
+	private List<MSC> mscs;
+	private double[] distances;
+
+	public MSCNearby() {
+		this(new ArrayList<MSC>(), new double[0]);
+	}
+
+	public MSCNearby(List<MSC> mscs, double[] distances) {
+		this.mscs = mscs;
+		this.distances = distances;
+	}
+
+	@XmlElement
+	public List<MSC> getMscs() {
+		return mscs;
+	}
+
+	@XmlElement
+	public double[] getDistances() {
+		return distances;
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Result of a neighbours query: an MSC and the MSCs sharing a border with
+ * it on the level of the MSC, sorted by name. The list is empty for MSCs
+ * surrounded by the ocean only.
+ */
+package mathservice;
+
+import java.util.*;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement
+@XmlType(propOrder = {"msc", "neighbors"})
+public class MSCNeighbors {
+	private MSC msc;
+	private List<MSC> neighbors;
+
+	public MSCNeighbors() {
+		this(null, new ArrayList<MSC>());
+	}
+
+	public MSCNeighbors(MSC msc, List<MSC> neighbors) {
+		this.msc = msc;
+		this.neighbors = neighbors;
+	}
+
+	@XmlElement
+	public MSC getMsc() {
+		return msc;
+	}
+
+	@XmlElement
+	public List<MSC> getNeighbors() {
+		return neighbors;
+	}
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only view of the border polygons of the MSCs (MSCPolygons.bin) as
+ * written by the MapGeneration project, i.e. the rings drawn on the map.
+ * Like MSCGrid the file is memory-mapped, only the bounding boxes of the
+ * rings and an R-tree over them are built on the heap.
+ *
+ * A point belongs to the MSC which has an odd number of rings around it
+ * (rings of lakes and islands cancel out). Since the rings are traced from
+ * the grid they may overlap slightly, so a point can also be claimed by
+ * several MSCs, see getIndex().
+ */
+public class MSCPolygons {
+	public static final int MAGIC = 0x4F4D4D50;
+	public static final int VERSION = 1;
+
+	/** returned by getIndex() if several MSCs claim a point */
+	public static final int AMBIGUOUS = -1;
+
+	private final int resolution;
+	private final String[] names;
+	/** name index, first vertex and vertex count of every ring, per level */
+	private final IntBuffer[] rings;
+	/** 2 * x, 2 * y of every vertex, per level */
+	private final ShortBuffer[] vertices;
+	private final RTree[] trees;
+
+	/** reused by every lookup of a thread, so a lookup allocates nothing */
+	private final ThreadLocal<Containment> containments = new ThreadLocal<Containment>() {
+		@Override
+		protected Containment initialValue() {
+			return new Containment();
+		}
+	};
+
+	/**
+	 * Collects the names with an odd number of rings of a level around a
+	 * point while the R-tree is searched. The set of names grows if a point
+	 * lies in more rings than fit, none is dropped.
+	 */
+	private static final class Containment implements RTree.Visitor {
+		private IntBuffer rings;
+		private ShortBuffer vertices;
+		private double x;
+		private double y;
+		/** there are rarely more than two */
+		private int[] odd = new int[4];
+		private int oddCount;
+
+		void reset(IntBuffer rings, ShortBuffer vertices, double x, double y) {
+			this.rings = rings;
+			this.vertices = vertices;
+			this.x = x;
+			this.y = y;
+			oddCount = 0;
+		}
+
+		/**
+		 * Drops the buffers, so a thread does not keep the mapping of a
+		 * replaced file alive until its next lookup.
+		 */
+		void clear() {
+			rings = null;
+			vertices = null;
+		}
+
+		@Override
+		public void visit(int ring) {
+			if (!contains(vertices, rings.get(3 * ring + 1), rings.get(3 * ring + 2), x, y)) {
+				return;
+			}
+
+			int name = rings.get(3 * ring);
+			for (int i = 0; i < oddCount; i++) {
+				if (odd[i] == name) {
+					odd[i] = odd[--oddCount];
+					return;
+				}
+			}
+			if (oddCount == odd.length) {
+				odd = Arrays.copyOf(odd, 2 * odd.length);
+			}
+			odd[oddCount++] = name;
+		}
+	}
+
+	private MSCPolygons(int resolution, String[] names, IntBuffer[] rings, ShortBuffer[] vertices) {
+		this.resolution = resolution;
+		this.names = names;
+		this.rings = rings;
+		this.vertices = vertices;
+
+		trees = new RTree[rings.length];
+		for (int level = 0; level < rings.length; ++level) {
+			trees[level] = new RTree(computeBoxes(rings[level], vertices[level]));
+		}
+	}
+
+	/**
+	 * Memory-maps a polygon file.
+	 */
+	public static MSCPolygons map(File polygonFile) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(polygonFile, "r");
+		MappedByteBuffer buffer;
+		try {
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException(polygonFile + " is not a binary MSC polygon file");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException(polygonFile + " has unsupported version " + version);
+		}
+
+		int resolution = buffer.getInt();
+		int levels = buffer.getInt();
+		String[] names = new String[buffer.getInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = MSCGrid.readUTF(buffer);
+		}
+
+		IntBuffer[] rings = new IntBuffer[levels];
+		ShortBuffer[] vertices = new ShortBuffer[levels];
+		try {
+			for (int level = 0; level < levels; ++level) {
+				int ringCount = buffer.getInt();
+				int vertexCount = buffer.getInt();
+				rings[level] = MSCGrid.slice(buffer, 12 * ringCount).asIntBuffer();
+				vertices[level] = MSCGrid.slice(buffer, 4 * vertexCount).asShortBuffer();
+				for (int ring = 0; ring < ringCount; ring++) {
+					int name = rings[level].get(3 * ring);
+					int from = rings[level].get(3 * ring + 1);
+					int count = rings[level].get(3 * ring + 2);
+					if (name < 0 || name >= names.length || from < 0 || count < 0 || from + count > vertexCount) {
+						throw new IOException(polygonFile + " has an invalid ring " + ring + " on level " + level);
+					}
+				}
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException(polygonFile + " is truncated", e);
+		}
+
+		if (buffer.hasRemaining()) {
+			throw new IOException(polygonFile + " has " + buffer.remaining() + " bytes too many");
+		}
+
+		return new MSCPolygons(resolution, names, rings, vertices);
+	}
+
+	/**
+	 * @return the bounding box of every ring in doubled coordinates
+	 */
+	private static int[] computeBoxes(IntBuffer rings, ShortBuffer vertices) {
+		int[] boxes = new int[4 * (rings.capacity() / 3)];
+		for (int ring = 0; ring < boxes.length / 4; ring++) {
+			int from = rings.get(3 * ring + 1);
+			int to = from + rings.get(3 * ring + 2);
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (int v = from; v < to; v++) {
+				minX = Math.min(minX, vertices.get(2 * v));
+				minY = Math.min(minY, vertices.get(2 * v + 1));
+				maxX = Math.max(maxX, vertices.get(2 * v));
+				maxY = Math.max(maxY, vertices.get(2 * v + 1));
+			}
+			boxes[4 * ring] = minX;
+			boxes[4 * ring + 1] = minY;
+			boxes[4 * ring + 2] = maxX;
+			boxes[4 * ring + 3] = maxY;
+		}
+
+		return boxes;
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	public int getLevels() {
+		return rings.length;
+	}
+
+	/**
+	 * @return number of distinct names in the dictionary
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int idx) {
+		return names[idx];
+	}
+
+	/**
+	 * @return size of the mapped rings and vertices in bytes
+	 */
+	public long getMappedBytes() {
+		long bytes = 0;
+		for (int level = 0; level < rings.length; level++) {
+			bytes += 4L * rings[level].capacity() + 2L * vertices[level].capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return rough size of the R-trees on the heap in bytes
+	 */
+	public long estimateBytes() {
+		long bytes = 0;
+		for (RTree tree: trees) {
+			bytes += tree.estimateBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Finds the MSC whose polygon contains a point.
+	 * @param level level of the polygons
+	 * @param lat   latitude in [0, 1]
+	 * @param lng   longitude in [0, 1]
+	 * @return dictionary index of the MSC, 0 ("null") if no MSC contains the
+	 *         point and AMBIGUOUS if several do
+	 */
+	public int getIndex(int level, double lat, double lng) {
+		double x = 2 * resolution * lat;
+		double y = 2 * resolution * lng;
+
+		Containment containment = containments.get();
+		containment.reset(rings[level], vertices[level], x, y);
+		try {
+			trees[level].search(x, y, containment);
+		} finally {
+			containment.clear();
+		}
+
+		if (containment.oddCount == 0) {
+			return 0;
+		}
+		return containment.oddCount == 1 ? containment.odd[0] : AMBIGUOUS;
+	}
+
+	/**
+	 * Crossing number test: counts the edges of the ring crossed by a ray
+	 * from (x, y) towards increasing x.
+	 */
+	private static boolean contains(ShortBuffer vertices, int from, int count, double x, double y) {
+		boolean inside = false;
+		int last = from + count - 1;
+		double x0 = vertices.get(2 * last), y0 = vertices.get(2 * last + 1);
+		for (int v = from; v <= last; v++) {
+			double x1 = vertices.get(2 * v), y1 = vertices.get(2 * v + 1);
+			if ((y1 > y) != (y0 > y) && x < x1 + (x0 - x1) * (y - y1) / (y0 - y1)) {
+				inside = !inside;
+			}
+			x0 = x1;
+			y0 = y1;
+		}
+		return inside;
+	}
+}
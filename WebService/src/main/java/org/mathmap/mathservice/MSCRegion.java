@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * MSC ownership of a rectangular part of the grid. Cell (x, y) covers the
+ * location lat = x / resolution, long = y / resolution. The region spans
+ * the cells x0 .. x0 + rows.size() - 1 and y0 .. y0 + width - 1.
+ *
+ * Every row is run-length encoded as pairs of legend index and run length,
+ * i.e. [msc, count, msc, count, ...], where the counts add up to width.
+ * legend lists the referenced MSCs, its first entry is always the "null"
+ * ocean.
+ */
+package mathservice;
+
+import java.util.*;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement
+@XmlType(propOrder = {"resolution", "level", "x0", "y0", "width", "legend", "rows"})
+public class MSCRegion {
+	private int resolution;
+	private int level;
+	private int x0;
+	private int y0;
+	private int width;
+	private List<MSC> legend;
+	private List<int[]> rows;
+
+	public MSCRegion() {
+		this(0, 0, 0, 0, 0, new ArrayList<MSC>(), new ArrayList<int[]>());
+	}
+
+	public MSCRegion(int resolution, int level, int x0, int y0, int width, List<MSC> legend, List<int[]> rows) {
+		this.resolution = resolution;
+		this.level = level;
+		this.x0 = x0;
+		this.y0 = y0;
+		this.width = width;
+		this.legend = legend;
+		this.rows = rows;
+	}
+
+	@XmlElement
+	public int getResolution() {
+		return resolution;
+	}
+
+	@XmlElement
+	public int getLevel() {
+		return level;
+	}
+
+	@XmlElement
+	public int getX0() {
+		return x0;
+	}
+
+	@XmlElement
+	public int getY0() {
+		return y0;
+	}
+
+	@XmlElement
+	public int getWidth() {
+		return width;
+	}
+
+	@XmlElement
+	public List<MSC> getLegend() {
+		return legend;
+	}
+
+	@XmlElement
+	public List<int[]> getRows() {
+		return rows;
+	}
+}
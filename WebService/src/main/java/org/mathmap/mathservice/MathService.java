@@ -19,170 +19,357 @@
 package mathservice;
 
 
-import java.io.*;
-import java.util.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Pattern;
 
-import javax.servlet.ServletContext;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
-import javax.ws.rs.core.GenericEntity;
-import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 import org.glassfish.jersey.server.JSONP;
 
 /**
- * This class provides the required methods and APIs for the webservice.
- * It consists of a constructor and two private methods assisting it to
- * parse the required data from the provided text files.
+ * This class provides the APIs of the webservice. A new instance is
+ * created per request, it answers from the DataSet that was current when
+ * the request came in, see DataSetManager. Both APIs take an optional
+ * dataset parameter (e.g. 1978 or cuml1986) to query one of the yearly or
+ * cumulative maps instead of the default one.
  *
- * In addition it provides two public APIs, mscquery and msclookup.
+ * It provides two public APIs, mscquery and msclookup.
  *
  * mscquery is used to resolve latitude and longitude coordinates to
  * MSC classes where the response is wrapped in JSONP. Additionally
  * it takes the current zoom level as parameter to decide if it should
  * return a top level or second-level class.
  *
- * msclookup is an experimental feature to allow for name-based search.
- * Currently it is very simple and inefficient, it returns the first MSC
- * where the search string is a substring of either the name or the
- * description.
+ * msclookup is used for name-based search. It returns the best matching
+ * MSC for a free text query over codes and descriptions, see SearchIndex,
+ * or no content if nothing matches, as it always did. v2/msclookup returns
+ * the best matches as a list, at most limit of them.
+ *
+ * mscsuggest completes the prefix typed into the search box to MSC codes
+ * and descriptions, see SuggestIndex.
+ *
+ * The answers of mscquery, msclookup and mscsuggest are assembled from the
+ * JSON pre-rendered per DataSet (see ResponseCache) and carry a strong ETag
+ * and Cache-Control, so browsers and the nginx frontend can cache them.
+ *
+ * mscquerybatch resolves many locations at once. The points are packed as
+ * lat,long[,zoom] separated by semicolons, either in the points query
+ * parameter (JSONP) or as the text/plain body of a POST (plain JSON). Points
+ * without zoom use the zoom parameter. The answer lists every distinct MSC
+ * once plus, per point, the index of its MSC in that list, see MSCBatch.
+ *
+ * mscregion returns the MSCs of all grid cells inside a bounding box as
+ * run-length encoded rows, so clients can highlight the MSC under the
+ * pointer without further requests, see MSCRegion.
+ *
+ * mscnearby lists the k MSCs whose centroids are closest to a location,
+ * with their distances, see MSCNearby. mscquery with nearest=true answers
+ * clicks into the ocean with the closest of them instead of "null".
+ *
+ * mscneighbors lists the MSCs sharing a border with the MSC of the given
+ * name, on the level of that MSC, see MSCNeighbors. It needs a dataset
+ * with MSCNeighbors.bin.
+ *
+ * metrics returns request counts and latencies, cache hit rates, load
+ * durations and memory estimates in the Prometheus text format, see
+ * Metrics.
  */
 @Path("/")
 public class MathService {
 
-	private static MSC[][][] grid;
-	private static int resolution;
-	private static int levels;
-	private static Map<String, String> name2desc;
-	private static List<MSC> mscs;
+	/** upper bound for the number of results of a single request */
+	private static final int MAX_LIMIT = 100;
 
-	public MathService(@Context ServletContext context) throws IOException {
-		resolution = 512;
-		levels = 2;
+	/** upper bound for the number of points of a single batch request */
+	private static final int MAX_POINTS = 1000;
 
-		if (name2desc == null) {
-			name2desc = new TreeMap<String, String>();
-			parseDescriptions(context);
-		}
+	/** browsers and proxies may cache mscquery, msclookup and mscsuggest for 5 minutes */
+	private static final String CACHE_CONTROL = "public, max-age=300";
 
-		if (grid == null) {
-			grid = new MSC[resolution][resolution][levels];
-			parseGrid(context);
-		}
+	/** JSONP callbacks are restricted to (dotted) JavaScript identifiers */
+	private static final Pattern CALLBACK = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(\\.[A-Za-z_$][A-Za-z0-9_$]*)*");
+
+	private final DataSetManager manager;
 
-		if (mscs == null) {
-			mscs = new ArrayList<MSC>();
-			parsePlotData(context);
+	public MathService() {
+		manager = DataSetManager.getInstance();
+	}
+
+	private DataSet getDataSet(String dataset) throws IOException {
+		DataSet data = manager.get(dataset);
+		if (data == null) {
+			throw new NotFoundException("Unknown dataset " + dataset);
 		}
+		return data;
 	}
 
-	private void parseDescriptions(ServletContext context) throws IOException {
-		File descFile = new File(context.getRealPath("/") + "/data/Descriptions.txt");
-		BufferedReader br = new BufferedReader(new FileReader(descFile));
-		String line = br.readLine();
-		while (line != null) {
-			String tokens[] = line.split("\\*\\*\\*");
-
-			String name = "MSC" + tokens[0];
-			String desc = tokens[1];
-			name2desc.put(name, desc);
-			line = br.readLine();
+	@GET
+	@Produces({"application/javascript"})
+	@Path("/mscquery")
+	public Response getMSCByLocationJSONP(@QueryParam("lat")  double lat,
+ 						               			 @QueryParam("long") double lng,
+ 						               			 @QueryParam("zoom")  @DefaultValue("9") int zoom,
+ 						               			 @QueryParam("nearest") @DefaultValue("false") boolean nearest,
+ 						               			 @QueryParam("dataset") String dataset,
+ 						               			 @QueryParam("callback") @DefaultValue("callback") String callback,
+ 						               			 @Context Request request
+ 						               			 ) throws IOException {
+		long start = System.nanoTime();
+		try {
+			DataSet data = getDataSet(dataset);
+			int level = getLevel(zoom);
+			MSC msc = nearest ? data.getMSCByLocationOrNearest(lat, lng, level) : data.getMSCByLocation(lat, lng, level);
+			return jsonp(data.getResponses().get(msc), callback, request);
+		} finally {
+			Metrics.MSCQUERY.recordSince(start);
 		}
+	}
 
-		name2desc.put("null", "null");
-		br.close();
+	/**
+	 * @return the level of the map that is shown at zoom, see ZoomLevels
+	 */
+	private int getLevel(int zoom) {
+		return manager.getZoomLevels().getLevel(zoom);
 	}
 
-	private void parsePlotData(ServletContext context) throws IOException {
-		File plotData = new File(context.getRealPath("/") + "/data/MergedPlotData.txt");
-		BufferedReader br = new BufferedReader(new FileReader(plotData));
-		String line = br.readLine();
-		while (line != null) {
-			String tokens[] = line.split(",");
-			String name = tokens[0];
-			String desc = name2desc.get(name);
-			double xCoord = Double.parseDouble(tokens[1]);
-			double yCoord = Double.parseDouble(tokens[2]);
-			double area   = Double.parseDouble(tokens[3]);
-
-			mscs.add(new MSC(name, desc, xCoord, yCoord, area));
-			line = br.readLine();
+	@GET
+	@JSONP(queryParam="callback")
+	@Produces({"application/javascript"})
+	@Path("/mscquerybatch")
+	public MSCBatch getMSCsByLocationsJSONP(@QueryParam("points")  String points,
+	                                        @QueryParam("zoom")    @DefaultValue("9") int zoom,
+	                                        @QueryParam("dataset") String dataset) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			return getMSCsByLocations(points, zoom, dataset);
+		} finally {
+			Metrics.MSCQUERYBATCH.recordSince(start);
 		}
+	}
 
-		name2desc.put("null", "null");
-		br.close();
+	@POST
+	@Consumes({"text/plain"})
+	@Produces({"application/json"})
+	@Path("/mscquerybatch")
+	public MSCBatch getMSCsByLocationsPOST(String points,
+	                                       @QueryParam("zoom")    @DefaultValue("9") int zoom,
+	                                       @QueryParam("dataset") String dataset) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			return getMSCsByLocations(points, zoom, dataset);
+		} finally {
+			Metrics.MSCQUERYBATCH.recordSince(start);
+		}
 	}
 
-	private void parseGrid(ServletContext context) throws IOException {
-		for (int level = 0; level < levels; ++level) {
-			File gridFile = new File(context.getRealPath("/") + "/data/MSCGrid" + level + ".csv");
-			BufferedReader br = new BufferedReader(new FileReader(gridFile));
-			for (int i = 0; i < resolution; i++) {
-				String line = br.readLine();
-				String tokens[] = line.split(";");
-				for (int j = 0; j < resolution; j++) {
-					String name = tokens[j];
-					String desc = name2desc.get(name);
-					grid[i][j][level] = new MSC(name, desc);
-				}
-			}
-			br.close();
+	@GET
+	@JSONP(queryParam="callback")
+	@Produces({"application/javascript"})
+	@Path("/mscregion")
+	public MSCRegion getRegionJSONP(@QueryParam("minlat")  double minLat,
+	                                @QueryParam("minlong") double minLng,
+	                                @QueryParam("maxlat")  double maxLat,
+	                                @QueryParam("maxlong") double maxLng,
+	                                @QueryParam("zoom")    @DefaultValue("9") int zoom,
+	                                @QueryParam("dataset") String dataset) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			return getDataSet(dataset).getRegion(minLat, minLng, maxLat, maxLng, getLevel(zoom));
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestException(e.getMessage());
+		} finally {
+			Metrics.MSCREGION.recordSince(start);
 		}
 	}
 
-	private double clamp (double val, double min, double max) {
-		return Math.min(max, Math.max(min, val));
+	@GET
+	@JSONP(queryParam="callback")
+	@Produces({"application/javascript"})
+	@Path("/mscnearby")
+	public MSCNearby getNearbyMSCsJSONP(@QueryParam("lat")     double lat,
+	                                    @QueryParam("long")    double lng,
+	                                    @QueryParam("zoom")    @DefaultValue("9") int zoom,
+	                                    @QueryParam("k")       @DefaultValue("5") int k,
+	                                    @QueryParam("dataset") String dataset) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			k = Math.max(1, Math.min(k, MAX_LIMIT));
+			return getDataSet(dataset).getNearbyMSCs(lat, lng, getLevel(zoom), k);
+		} finally {
+			Metrics.MSCNEARBY.recordSince(start);
+		}
 	}
 
-	private MSC getMSCByLocation(double lat, double lng, int level) {
-		lat = clamp(lat, 0.0, 1.0);
-		lng = clamp(lng, 0.0, 1.0);
-		int x = (int) (resolution * lat + 0.5);
-		int y = (int) (resolution * lng + 0.5);
-		return grid[x][y][level];
+	@GET
+	@JSONP(queryParam="callback")
+	@Produces({"application/javascript"})
+	@Path("/mscneighbors")
+	public MSCNeighbors getNeighborsJSONP(@QueryParam("name")    String name,
+	                                      @QueryParam("dataset") String dataset) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			DataSet data = getDataSet(dataset);
+			MSC msc = name != null ? data.getMSC(name) : null;
+			if (msc == null) {
+				throw new NotFoundException("Unknown MSC " + name);
+			}
+
+			List<MSC> neighbors = data.getNeighbors(name);
+			if (neighbors == null) {
+				throw new NotFoundException("No neighbours for dataset " + dataset);
+			}
+			return new MSCNeighbors(msc, neighbors);
+		} finally {
+			Metrics.MSCNEIGHBORS.recordSince(start);
+		}
 	}
 
-	private MSC getMSCByString(String str) {
-		for (MSC msc: mscs) {
-			if ( msc.getName().contains(str) ||
-				 msc.getDesc().contains(str) ) {
-				return msc;
+	private MSCBatch getMSCsByLocations(String points, int zoom, String dataset) throws IOException {
+		DataSet data = getDataSet(dataset);
+		if (points == null || points.trim().isEmpty()) {
+			return new MSCBatch();
+		}
+
+		String[] packed = points.trim().split(";");
+		if (packed.length > MAX_POINTS) {
+			throw new BadRequestException("At most " + MAX_POINTS + " points per request");
+		}
+
+		MSC[] results = new MSC[packed.length];
+		for (int i = 0; i < packed.length; i++) {
+			String[] coords = packed[i].split(",");
+			if (coords.length < 2 || coords.length > 3) {
+				throw new BadRequestException("Malformed point " + packed[i]);
+			}
+			try {
+				double lat = Double.parseDouble(coords[0].trim());
+				double lng = Double.parseDouble(coords[1].trim());
+				int level = getLevel(coords.length == 3 ? Integer.parseInt(coords[2].trim()) : zoom);
+				results[i] = data.getMSCByLocation(lat, lng, level);
+			} catch (NumberFormatException e) {
+				throw new BadRequestException("Malformed point " + packed[i]);
 			}
 		}
 
-		return null;
+		return MSCBatch.of(results);
 	}
 
+
 	@GET
-	@JSONP(queryParam="callback")
 	@Produces({"application/javascript"})
-	@Path("/mscquery")
-	public MSC getMSCByLocationJSONP(@QueryParam("lat")  double lat,
- 						               			 @QueryParam("long") double lng,
- 						               			 @QueryParam("zoom")  @DefaultValue("9") int zoom
- 						               			 ) {
-		int level;
-		if (zoom < 13) {
-			level = 0;
-		} else {
-			level = 1;
-		}
+	@Path("/msclookup")
+	public Response getMSCByStringJSONP(@QueryParam("search")   String str,
+	                                    @QueryParam("dataset")  String dataset,
+	                                    @QueryParam("callback") @DefaultValue("callback") String callback,
+	                                    @Context Request request) throws IOException {
 
-		return getMSCByLocation(lat, lng, level);
+		long start = System.nanoTime();
+		try {
+			DataSet data = getDataSet(dataset);
+			List<MSC> mscs = data.getMSCsByString(str, 1);
+			if (mscs.isEmpty()) {
+				return Response.noContent().build();
+			}
+			return jsonp(data.getResponses().get(mscs.get(0)), callback, request);
+		} finally {
+			Metrics.MSCLOOKUP.recordSince(start);
+		}
 	}
 
+	@GET
+	@Produces({"application/javascript"})
+	@Path("/v2/msclookup")
+	public Response getMSCsByStringJSONP(@QueryParam("search")   String str,
+	                                     @QueryParam("limit")    @DefaultValue("10") int limit,
+	                                     @QueryParam("dataset")  String dataset,
+	                                     @QueryParam("callback") @DefaultValue("callback") String callback,
+	                                     @Context Request request) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+			DataSet data = getDataSet(dataset);
+			return jsonp(data.getResponses().get(data.getMSCsByString(str, limit)), callback, request);
+		} finally {
+			Metrics.MSCLOOKUP.recordSince(start);
+		}
+	}
 
 	@GET
-	@JSONP(queryParam="callback")
 	@Produces({"application/javascript"})
-	@Path("/msclookup")
-	public MSC getMSCByStringJSONP(@QueryParam("search")  String str) {
+	@Path("/mscsuggest")
+	public Response getSuggestionsJSONP(@QueryParam("prefix")   String prefix,
+	                                    @QueryParam("limit")    @DefaultValue("10") int limit,
+	                                    @QueryParam("dataset")  String dataset,
+	                                    @QueryParam("callback") @DefaultValue("callback") String callback,
+	                                    @Context Request request) throws IOException {
+
+		long start = System.nanoTime();
+		try {
+			limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+			DataSet data = getDataSet(dataset);
+			return jsonp(data.getResponses().get(data.getSuggestions(prefix, limit)), callback, request);
+		} finally {
+			Metrics.MSCSUGGEST.recordSince(start);
+		}
+	}
 
-		return getMSCByString(str);
+	/**
+	 * Wraps a pre-rendered payload into the JSONP callback. The ETag covers
+	 * payload and callback, so it is a strong validator of the exact bytes
+	 * sent; a matching If-None-Match is answered with 304.
+	 */
+	private static Response jsonp(ResponseCache.Payload payload, String callback, Request request) {
+		if (!CALLBACK.matcher(callback).matches()) {
+			throw new BadRequestException("Invalid callback " + callback);
+		}
+
+		EntityTag etag = new EntityTag(payload.getETag() + "-" + callback);
+
+		Response.ResponseBuilder builder = request.evaluatePreconditions(etag);
+		if (builder != null) {
+			Metrics.NOT_MODIFIED.incrementAndGet();
+		} else {
+			byte[] name = callback.getBytes(StandardCharsets.US_ASCII);
+			byte[] json = payload.getJson();
+			byte[] body = new byte[name.length + json.length + 2];
+			System.arraycopy(name, 0, body, 0, name.length);
+			body[name.length] = '(';
+			System.arraycopy(json, 0, body, name.length + 1, json.length);
+			body[body.length - 1] = ')';
+			builder = Response.ok(body);
+		}
+
+		/** headers are set as strings, Jersey's header delegates are costly here */
+		return builder.header(HttpHeaders.ETAG, "\"" + etag.getValue() + "\"")
+				.header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL)
+				.build();
+	}
+
+	@GET
+	@Produces({Metrics.CONTENT_TYPE})
+	@Path("/metrics")
+	public String getMetrics() {
+		return Metrics.format(manager);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Loads the data once when the web application is deployed, see
+ * DataSetManager. Reloading on changes of WebContent/data can be switched
+ * off with the context parameter mathservice.watchData, the number of
+ * yearly/cumulative datasets kept in memory is set by mathservice.maxDataSets
+ * and the zoom at which the finer levels of the map are shown by
+ * mathservice.zoomLevels (see ZoomLevels).
+ */
+public class MathServiceListener implements ServletContextListener {
+	private static final int DEFAULT_MAX_DATASETS = 16;
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		ServletContext context = event.getServletContext();
+		File dataDir = new File(context.getRealPath("/") + "/data");
+		boolean watch = !"false".equals(context.getInitParameter("mathservice.watchData"));
+		int maxDataSets = DEFAULT_MAX_DATASETS;
+		if (context.getInitParameter("mathservice.maxDataSets") != null) {
+			maxDataSets = Integer.parseInt(context.getInitParameter("mathservice.maxDataSets"));
+		}
+		ZoomLevels zoomLevels = ZoomLevels.DEFAULT;
+		if (context.getInitParameter("mathservice.zoomLevels") != null) {
+			zoomLevels = ZoomLevels.parse(context.getInitParameter("mathservice.zoomLevels"));
+		}
+
+		try {
+			DataSetManager.start(dataDir, watch, maxDataSets, zoomLevels);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not load " + dataDir, e);
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		DataSetManager.stop();
+	}
+}
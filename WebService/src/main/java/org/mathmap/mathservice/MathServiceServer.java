@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the MathService API without a servlet container, on the HTTP
+ * server built into the JDK. The resources are registered explicitly, so
+ * Jersey does not scan packages at startup.
+ *
+ * Every request is handled on its own virtual thread if the JDK provides
+ * them (Java 21 or newer), otherwise on a cached thread pool.
+ *
+ * Usage: java -jar MathService-standalone.jar DataDir [Port]
+ *
+ * The API is available below /MathService/, as in the WAR deployment. The
+ * system properties mathservice.watchData, mathservice.maxDataSets and
+ * mathservice.zoomLevels have the same meaning as the context parameters of
+ * the WAR.
+ */
+public class MathServiceServer {
+	private static final Logger LOG = Logger.getLogger(MathServiceServer.class.getName());
+
+	private static final int DEFAULT_PORT = 8080;
+	private static final int DEFAULT_MAX_DATASETS = 16;
+
+	public static ResourceConfig createResourceConfig() {
+		return new ResourceConfig()
+				.register(MathService.class)
+				.register(JacksonFeature.class);
+	}
+
+	/**
+	 * @return an executor starting one virtual thread per task if available,
+	 *         a cached thread pool otherwise
+	 */
+	public static ExecutorService createExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Loads the data and starts the server.
+	 * @return the running server, stop it with stop()
+	 */
+	public static HttpServer start(File dataDir, int port, ExecutorService executor) throws IOException {
+		/** Jersey writes headers and entity separately, without TCP_NODELAY keep-alive
+		 *  connections stall on delayed ACKs. Read once when the JDK server is first used. */
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+
+		boolean watch = !"false".equals(System.getProperty("mathservice.watchData"));
+		int maxDataSets = Integer.getInteger("mathservice.maxDataSets", DEFAULT_MAX_DATASETS);
+		ZoomLevels zoomLevels = ZoomLevels.DEFAULT;
+		if (System.getProperty("mathservice.zoomLevels") != null) {
+			zoomLevels = ZoomLevels.parse(System.getProperty("mathservice.zoomLevels"));
+		}
+		DataSetManager.start(dataDir, watch, maxDataSets, zoomLevels);
+
+		URI uri = URI.create("http://0.0.0.0:" + port + "/MathService/");
+		HttpServer server = JdkHttpServerFactory.createHttpServer(uri, createResourceConfig(), false);
+		server.setExecutor(executor);
+		server.start();
+		return server;
+	}
+
+	public static void stop(HttpServer server, ExecutorService executor) {
+		server.stop(0);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		DataSetManager.stop();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: MathServiceServer <DataDir> [Port]");
+			System.exit(1);
+		}
+
+		long start = System.nanoTime();
+		File dataDir = new File(args[0]);
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		final ExecutorService executor = createExecutor();
+		final HttpServer server = start(dataDir, port, executor);
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				MathServiceServer.stop(server, executor);
+			}
+		});
+
+		LOG.info("MathService listening on port " + port + " after "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
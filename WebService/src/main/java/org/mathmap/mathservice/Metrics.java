@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide metrics of the webservice, exposed by the metrics API in the
+ * Prometheus text format. All counters are atomics and the histograms are
+ * lock-free (see LatencyHistogram), so recording is cheap enough for the
+ * hot paths; only formatting walks over them.
+ *
+ * Request durations are recorded per API, load durations per loader
+ * (descriptions, plot data, grid, polygons, centroids, neighbours, search
+ * indices, rendered responses) and for the whole DataSet. The memory gauges
+ * estimate the size of the structures of the default dataset when the
+ * metrics are read.
+ */
+public class Metrics {
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+	private static final Map<String, LatencyHistogram> REQUESTS = new LinkedHashMap<String, LatencyHistogram>();
+	private static final Map<String, LatencyHistogram> LOADS = new LinkedHashMap<String, LatencyHistogram>();
+
+	public static final LatencyHistogram MSCQUERY = request("mscquery");
+	public static final LatencyHistogram MSCLOOKUP = request("msclookup");
+	public static final LatencyHistogram MSCSUGGEST = request("mscsuggest");
+	public static final LatencyHistogram MSCQUERYBATCH = request("mscquerybatch");
+	public static final LatencyHistogram MSCREGION = request("mscregion");
+	public static final LatencyHistogram MSCNEARBY = request("mscnearby");
+	public static final LatencyHistogram MSCNEIGHBORS = request("mscneighbors");
+
+	public static final LatencyHistogram LOAD_DESCRIPTIONS = load("descriptions");
+	public static final LatencyHistogram LOAD_PLOTDATA = load("plotdata");
+	public static final LatencyHistogram LOAD_GRID = load("grid");
+	public static final LatencyHistogram LOAD_POLYGONS = load("polygons");
+	public static final LatencyHistogram LOAD_CENTROIDS = load("centroids");
+	public static final LatencyHistogram LOAD_NEIGHBORS = load("neighbors");
+	public static final LatencyHistogram LOAD_INDEX = load("index");
+	public static final LatencyHistogram LOAD_RESPONSES = load("responses");
+	public static final LatencyHistogram LOAD_DATASET = load("dataset");
+
+	public static final AtomicLong NOT_MODIFIED = new AtomicLong();
+	public static final AtomicLong RESPONSE_CACHE_HITS = new AtomicLong();
+	public static final AtomicLong RESPONSE_CACHE_MISSES = new AtomicLong();
+	public static final AtomicLong DATASET_CACHE_HITS = new AtomicLong();
+	public static final AtomicLong DATASET_CACHE_MISSES = new AtomicLong();
+	public static final AtomicLong DATASET_PREFETCHES = new AtomicLong();
+	public static final AtomicLong RELOADS = new AtomicLong();
+	public static final AtomicLong RELOAD_FAILURES = new AtomicLong();
+
+	private Metrics() {
+	}
+
+	private static LatencyHistogram request(String endpoint) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		REQUESTS.put(endpoint, histogram);
+		return histogram;
+	}
+
+	private static LatencyHistogram load(String loader) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		LOADS.put(loader, histogram);
+		return histogram;
+	}
+
+	/**
+	 * Formats a value the way Prometheus expects it.
+	 */
+	static String format(double value) {
+		if (Double.isNaN(value)) {
+			return "NaN";
+		} else if (Double.isInfinite(value)) {
+			return value > 0 ? "+Inf" : "-Inf";
+		}
+		return Double.toString(value);
+	}
+
+	/**
+	 * Rough size of a String on the heap: object header, fields and array.
+	 */
+	static long estimateBytes(String str) {
+		return 40 + 2L * str.length();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if (labels != null) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(format(value)).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, long value) {
+		out.append(name);
+		if (labels != null) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	private static void histograms(StringBuilder out, String name, String label, String help,
+			Map<String, LatencyHistogram> histograms) {
+		header(out, name, "histogram", help);
+		for (Map.Entry<String, LatencyHistogram> entry: histograms.entrySet()) {
+			entry.getValue().write(out, name, label + "=\"" + entry.getKey() + "\"");
+		}
+
+		/** quantiles estimated from the buckets, for readers without histogram_quantile() */
+		String quantileName = name.replace("_seconds", "_quantile_seconds");
+		header(out, quantileName, "gauge", help + " Quantiles estimated from the histogram buckets.");
+		for (Map.Entry<String, LatencyHistogram> entry: histograms.entrySet()) {
+			for (double q: QUANTILES) {
+				sample(out, quantileName, label + "=\"" + entry.getKey() + "\",quantile=\"" + q + "\"",
+						entry.getValue().getQuantile(q));
+			}
+		}
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text exposition format
+	 */
+	public static String format(DataSetManager manager) {
+		StringBuilder out = new StringBuilder(64 * 1024);
+
+		histograms(out, "mathservice_request_duration_seconds", "endpoint",
+				"Time spent answering requests.", REQUESTS);
+		histograms(out, "mathservice_load_duration_seconds", "loader",
+				"Time spent loading data files.", LOADS);
+
+		header(out, "mathservice_not_modified_total", "counter",
+				"Requests answered with 304 Not Modified.");
+		sample(out, "mathservice_not_modified_total", null, NOT_MODIFIED.get());
+
+		header(out, "mathservice_response_cache_requests_total", "counter",
+				"Responses looked up among the pre-rendered ones, a list counts once.");
+		sample(out, "mathservice_response_cache_requests_total", "result=\"hit\"", RESPONSE_CACHE_HITS.get());
+		sample(out, "mathservice_response_cache_requests_total", "result=\"miss\"", RESPONSE_CACHE_MISSES.get());
+
+		header(out, "mathservice_dataset_cache_requests_total", "counter",
+				"Requests for yearly and cumulative datasets.");
+		sample(out, "mathservice_dataset_cache_requests_total", "result=\"hit\"", DATASET_CACHE_HITS.get());
+		sample(out, "mathservice_dataset_cache_requests_total", "result=\"miss\"", DATASET_CACHE_MISSES.get());
+
+		header(out, "mathservice_dataset_prefetches_total", "counter",
+				"Datasets loaded in the background.");
+		sample(out, "mathservice_dataset_prefetches_total", null, DATASET_PREFETCHES.get());
+
+		header(out, "mathservice_reloads_total", "counter", "Reloads of the data directory.");
+		sample(out, "mathservice_reloads_total", "result=\"success\"", RELOADS.get());
+		sample(out, "mathservice_reloads_total", "result=\"failure\"", RELOAD_FAILURES.get());
+
+		header(out, "mathservice_datasets_cached", "gauge",
+				"Yearly and cumulative datasets in memory or being loaded.");
+		sample(out, "mathservice_datasets_cached", null, manager.getCachedDataSetCount());
+
+		DataSet data = manager.get();
+		MSCGrid grid = data.getGrid();
+		header(out, "mathservice_memory_bytes", "gauge",
+				"Estimated size of the structures of the default dataset.");
+		sample(out, "mathservice_memory_bytes", "component=\"grid\",storage=\"" + (grid.isMapped() ? "mapped" : "heap") + "\"",
+				grid.getCellBytes());
+		MSCPolygons polygons = data.getPolygons();
+		if (polygons != null) {
+			sample(out, "mathservice_memory_bytes", "component=\"polygons\",storage=\"mapped\"",
+					polygons.getMappedBytes());
+			sample(out, "mathservice_memory_bytes", "component=\"polygon_index\",storage=\"heap\"",
+					polygons.estimateBytes());
+		}
+		sample(out, "mathservice_memory_bytes", "component=\"centroid_index\",storage=\"heap\"",
+				data.estimateCentroidBytes());
+		MSCAdjacency adjacency = data.getAdjacency();
+		if (adjacency != null) {
+			sample(out, "mathservice_memory_bytes", "component=\"neighbors\",storage=\"heap\"",
+					adjacency.estimateBytes());
+		}
+		sample(out, "mathservice_memory_bytes", "component=\"search_index\",storage=\"heap\"",
+				data.getSearchIndex().estimateBytes());
+		sample(out, "mathservice_memory_bytes", "component=\"suggest_index\",storage=\"heap\"",
+				data.getSuggestIndex().estimateBytes());
+		sample(out, "mathservice_memory_bytes", "component=\"responses\",storage=\"heap\"",
+				data.getResponses().estimateBytes());
+
+		Runtime runtime = Runtime.getRuntime();
+		header(out, "mathservice_jvm_heap_bytes", "gauge", "Heap of the Java virtual machine.");
+		sample(out, "mathservice_jvm_heap_bytes", "area=\"used\"", runtime.totalMemory() - runtime.freeMemory());
+		sample(out, "mathservice_jvm_heap_bytes", "area=\"committed\"", runtime.totalMemory());
+		sample(out, "mathservice_jvm_heap_bytes", "area=\"max\"", runtime.maxMemory());
+
+		return out.toString();
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.util.*;
+
+/**
+ * Static R-tree over integer bounding boxes, bulk-loaded once with
+ * Sort-Tile-Recursive (STR): the boxes are sorted by the x of their centre,
+ * cut into vertical slices of about sqrt(n / NODE_CAPACITY) nodes each, and
+ * every slice is sorted by y and packed into full nodes. The same is repeated
+ * for the nodes until a single root is left. Packed nodes barely overlap, so
+ * a point query visits few nodes besides the ones on its path.
+ *
+ * The tree is stored in flat arrays: four ints per node for its box and the
+ * children of node k at children[first[k]] ... children[first[k + 1] - 1].
+ * Nodes below leafNodes point to entries, all others to nodes.
+ */
+public class RTree {
+	public static final int NODE_CAPACITY = 16;
+
+	/**
+	 * Called for every entry whose box contains the query point.
+	 */
+	public interface Visitor {
+		void visit(int entry);
+	}
+
+	/** minX, minY, maxX, maxY of every entry */
+	private final int[] entryBoxes;
+	/** minX, minY, maxX, maxY of every node */
+	private int[] nodeBoxes = new int[4 * 16];
+	private int[] first = new int[16];
+	private int[] children;
+	private int nodes = 0;
+	private int childCount = 0;
+	private final int leafNodes;
+	private final int root;
+
+	/**
+	 * Bulk-loads the tree.
+	 * @param entryBoxes minX, minY, maxX, maxY of every entry, entry i
+	 *        starting at 4 * i
+	 */
+	public RTree(int[] entryBoxes) {
+		this.entryBoxes = entryBoxes;
+		int entries = entryBoxes.length / 4;
+		children = new int[entries + entries / (NODE_CAPACITY - 1) + 16];
+
+		int[] items = new int[entries];
+		for (int i = 0; i < entries; i++) {
+			items[i] = i;
+		}
+		items = pack(items, entryBoxes);
+		leafNodes = nodes;
+		while (items.length > 1) {
+			items = pack(items, nodeBoxes);
+		}
+		root = items.length == 1 ? items[0] : -1;
+
+		first = Arrays.copyOf(first, nodes + 1);
+		first[nodes] = childCount;
+		nodeBoxes = Arrays.copyOf(nodeBoxes, 4 * nodes);
+		children = Arrays.copyOf(children, childCount);
+	}
+
+	/**
+	 * Packs one level of the tree.
+	 * @param items ids of the entries or nodes to pack
+	 * @param boxes boxes the ids refer to
+	 * @return ids of the new nodes
+	 */
+	private int[] pack(int[] items, int[] boxes) {
+		int count = items.length;
+		int packed = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		int sliceSize = (int) Math.ceil(Math.sqrt(packed)) * NODE_CAPACITY;
+
+		sortByCentre(items, 0, count, boxes, 0);
+		int[] result = new int[packed];
+		int n = 0;
+		for (int slice = 0; slice < count; slice += sliceSize) {
+			int sliceEnd = Math.min(count, slice + sliceSize);
+			sortByCentre(items, slice, sliceEnd, boxes, 1);
+			for (int from = slice; from < sliceEnd; from += NODE_CAPACITY) {
+				result[n++] = addNode(items, from, Math.min(sliceEnd, from + NODE_CAPACITY), boxes);
+			}
+		}
+
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Sorts items[from, to) by the centre of their boxes along an axis,
+	 * 0 for x and 1 for y.
+	 */
+	private static void sortByCentre(int[] items, int from, int to, int[] boxes, int axis) {
+		/** the doubled centre in the upper and the id in the lower half of a long */
+		long[] keys = new long[to - from];
+		for (int i = from; i < to; i++) {
+			long centre = (long) boxes[4 * items[i] + axis] + boxes[4 * items[i] + axis + 2];
+			keys[i - from] = (centre << 32) | items[i];
+		}
+		Arrays.sort(keys);
+		for (int i = from; i < to; i++) {
+			items[i] = (int) keys[i - from];
+		}
+	}
+
+	private int addNode(int[] items, int from, int to, int[] boxes) {
+		if (nodes + 1 >= first.length) {
+			first = Arrays.copyOf(first, 2 * first.length);
+			nodeBoxes = Arrays.copyOf(nodeBoxes, 4 * first.length);
+		}
+		if (childCount + to - from > children.length) {
+			children = Arrays.copyOf(children, 2 * (childCount + to - from));
+		}
+
+		int node = nodes++;
+		first[node] = childCount;
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (int i = from; i < to; i++) {
+			int item = items[i];
+			children[childCount++] = item;
+			minX = Math.min(minX, boxes[4 * item]);
+			minY = Math.min(minY, boxes[4 * item + 1]);
+			maxX = Math.max(maxX, boxes[4 * item + 2]);
+			maxY = Math.max(maxY, boxes[4 * item + 3]);
+		}
+		nodeBoxes[4 * node] = minX;
+		nodeBoxes[4 * node + 1] = minY;
+		nodeBoxes[4 * node + 2] = maxX;
+		nodeBoxes[4 * node + 3] = maxY;
+		return node;
+	}
+
+	private static boolean contains(int[] boxes, int idx, double x, double y) {
+		return boxes[4 * idx] <= x && x <= boxes[4 * idx + 2]
+				&& boxes[4 * idx + 1] <= y && y <= boxes[4 * idx + 3];
+	}
+
+	/**
+	 * Calls visitor for every entry whose box contains (x, y), boundaries
+	 * included.
+	 */
+	public void search(double x, double y, Visitor visitor) {
+		if (root >= 0 && contains(nodeBoxes, root, x, y)) {
+			search(root, x, y, visitor);
+		}
+	}
+
+	private void search(int node, double x, double y, Visitor visitor) {
+		boolean leaf = node < leafNodes;
+		for (int i = first[node]; i < first[node + 1]; i++) {
+			int child = children[i];
+			if (leaf) {
+				if (contains(entryBoxes, child, x, y)) {
+					visitor.visit(child);
+				}
+			} else if (contains(nodeBoxes, child, x, y)) {
+				search(child, x, y, visitor);
+			}
+		}
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return entryBoxes.length / 4;
+	}
+
+	/**
+	 * @return rough size of the tree on the heap in bytes
+	 */
+	public long estimateBytes() {
+		return 4L * (entryBoxes.length + nodeBoxes.length + first.length + children.length);
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import javax.ws.rs.core.MediaType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
+
+/**
+ * JSON representations of the MSCs of a DataSet, rendered once when the
+ * DataSet is loaded. Requests for single MSCs are answered from the
+ * pre-rendered bytes, lists of MSCs are concatenated from them, so Jackson
+ * is not involved in answering mscquery, msclookup and mscsuggest.
+ *
+ * The bytes are the same Jersey would produce, as they are rendered with
+ * the mapper of the Jackson provider Jersey uses. Every payload carries a
+ * hash of its bytes which is used as strong ETag; the hash of a list is
+ * combined from the hashes of its elements.
+ */
+public class ResponseCache {
+	private static final ObjectMapper MAPPER =
+			new JacksonJaxbJsonProvider().locateMapper(MSC.class, MediaType.APPLICATION_JSON_TYPE);
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Rendered JSON of a response together with its ETag.
+	 */
+	public static class Payload {
+		private final byte[] json;
+		private final long hash;
+		private final String etag;
+
+		private Payload(byte[] json, long hash) {
+			this.json = json;
+			this.hash = hash;
+			this.etag = Long.toHexString(hash);
+		}
+
+		private Payload(byte[] json) {
+			this(json, hash(json));
+		}
+
+		public byte[] getJson() {
+			return json;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+	}
+
+	private final Map<MSC, Payload> msc2payload = new IdentityHashMap<MSC, Payload>();
+
+	/**
+	 * Renders all given MSCs.
+	 */
+	public ResponseCache(Collection<MSC> mscs) throws IOException {
+		for (MSC msc: mscs) {
+			if (!msc2payload.containsKey(msc)) {
+				msc2payload.put(msc, new Payload(MAPPER.writeValueAsBytes(msc)));
+			}
+		}
+	}
+
+	/**
+	 * 64 bit FNV-1a hash.
+	 */
+	private static long hash(byte[] bytes) {
+		long hash = FNV_OFFSET;
+		for (byte b: bytes) {
+			hash ^= b & 0xFF;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the JSON of the given MSC, counted as one lookup
+	 */
+	public Payload get(MSC msc) throws IOException {
+		Payload payload = msc2payload.get(msc);
+		count(payload != null);
+		return payload != null ? payload : render(msc);
+	}
+
+	/**
+	 * All MSCs of a DataSet are rendered in advance, this is just a safety net.
+	 */
+	private static Payload render(MSC msc) throws IOException {
+		return new Payload(MAPPER.writeValueAsBytes(msc));
+	}
+
+	private static void count(boolean hit) {
+		if (hit) {
+			Metrics.RESPONSE_CACHE_HITS.incrementAndGet();
+		} else {
+			Metrics.RESPONSE_CACHE_MISSES.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return rough size of the rendered responses on the heap in bytes
+	 */
+	public long estimateBytes() {
+		long bytes = 0;
+		for (Payload payload: msc2payload.values()) {
+			bytes += 32 + 16 + payload.json.length + Metrics.estimateBytes(payload.etag) + 32;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the JSON array of the given MSCs, counted as one lookup which
+	 *         misses if any of them had to be rendered
+	 */
+	public Payload get(List<MSC> mscs) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128 * (mscs.size() + 1));
+		long hash = FNV_OFFSET ^ '[';
+		out.write('[');
+		boolean hit = true;
+		for (int i = 0; i < mscs.size(); i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			Payload payload = msc2payload.get(mscs.get(i));
+			if (payload == null) {
+				hit = false;
+				payload = render(mscs.get(i));
+			}
+			out.write(payload.json);
+			hash = (hash ^ payload.hash) * FNV_PRIME;
+		}
+		out.write(']');
+		count(hit);
+		return new Payload(out.toByteArray(), hash);
+	}
+}
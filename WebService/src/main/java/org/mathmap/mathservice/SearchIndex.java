@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.util.*;
+
+/**
+ * Case-folded inverted index over the MSC descriptions. Every entry of
+ * Descriptions.txt is a document, identified by its position in the
+ * (sorted) description map. Its tokens are the lower-cased words of the
+ * description plus the MSC code itself without the MSC prefix and dashes,
+ * e.g. 35xx, 35axx or 35a01.
+ *
+ * The vocabulary is kept as a sorted array with the postings aligned to
+ * it, so a token is found by binary search and all tokens starting with a
+ * prefix form a contiguous range. Queries are ranked by the summed inverse
+ * document frequency of the matched query tokens; the last query token
+ * also matches as a prefix, with a lower weight, so partially typed words
+ * still find something.
+ */
+public class SearchIndex {
+	/** weight of a token matched only as a prefix of the last query token */
+	private static final float PREFIX_WEIGHT = 0.5f;
+
+	/** shorter last query tokens are only matched exactly */
+	private static final int MIN_PREFIX_LENGTH = 2;
+
+	/** weight of an exact match on the MSC code */
+	private static final float CODE_WEIGHT = 4.0f;
+
+	private final String[] names;
+	private final int[] lengths;
+	private final String[] vocabulary;
+	private final int[][] postings;
+	private final float[] idf;
+	private final boolean[] isCode;
+
+	/**
+	 * Builds the index.
+	 * @param name2desc map from MSC name (e.g. MSC35A01) to description
+	 */
+	public SearchIndex(Map<String, String> name2desc) {
+		List<String> docNames = new ArrayList<String>();
+		List<Integer> docLengths = new ArrayList<Integer>();
+		SortedMap<String, List<Integer>> token2docs = new TreeMap<String, List<Integer>>();
+		Set<String> codes = new HashSet<String>();
+
+		for (Map.Entry<String, String> entry: name2desc.entrySet()) {
+			String name = entry.getKey();
+			String desc = entry.getValue();
+			if (!name.startsWith("MSC") || desc == null) {
+				continue;
+			}
+
+			int doc = docNames.size();
+			docNames.add(name);
+			docLengths.add(desc.length());
+
+			Set<String> tokens = new LinkedHashSet<String>();
+			String code = normalizeCode(name.substring(3));
+			tokens.add(code);
+			codes.add(code);
+			tokens.addAll(tokenize(desc));
+
+			for (String token: tokens) {
+				List<Integer> docs = token2docs.get(token);
+				if (docs == null) {
+					docs = new ArrayList<Integer>();
+					token2docs.put(token, docs);
+				}
+				docs.add(doc);
+			}
+		}
+
+		names = docNames.toArray(new String[docNames.size()]);
+		lengths = new int[names.length];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = docLengths.get(i);
+		}
+
+		vocabulary = token2docs.keySet().toArray(new String[token2docs.size()]);
+		postings = new int[vocabulary.length][];
+		idf = new float[vocabulary.length];
+		isCode = new boolean[vocabulary.length];
+		for (int t = 0; t < vocabulary.length; t++) {
+			List<Integer> docs = token2docs.get(vocabulary[t]);
+			postings[t] = new int[docs.size()];
+			for (int i = 0; i < postings[t].length; i++) {
+				postings[t][i] = docs.get(i);
+			}
+			idf[t] = (float) Math.log(1.0 + (double) names.length / docs.size());
+			isCode[t] = codes.contains(vocabulary[t]);
+		}
+	}
+
+	private static String normalizeCode(String code) {
+		return code.toLowerCase(Locale.ROOT).replace("-", "");
+	}
+
+	/**
+	 * Splits a text into lower-cased alphanumeric tokens.
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		for (String token: text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+			if (!token.isEmpty()) {
+				tokens.add(token);
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Splits a query into tokens. Dashes inside a term are dropped instead of
+	 * splitting it, so "35-XX" matches the code token 35xx.
+	 */
+	private static List<String> tokenizeQuery(String query) {
+		List<String> tokens = new ArrayList<String>();
+		for (String term: query.trim().split("\\s+")) {
+			String stripped = term.replace("-", "");
+			if (stripped.toLowerCase(Locale.ROOT).startsWith("msc")) {
+				stripped = stripped.substring(3);
+			}
+			tokens.addAll(tokenize(stripped));
+		}
+		return tokens;
+	}
+
+	/**
+	 * @return rough size of the index on the heap in bytes
+	 */
+	public long estimateBytes() {
+		long bytes = 4L * lengths.length + 5L * vocabulary.length;
+		for (String name: names) {
+			bytes += 8 + Metrics.estimateBytes(name);
+		}
+		for (int t = 0; t < vocabulary.length; t++) {
+			bytes += 8 + Metrics.estimateBytes(vocabulary[t]) + 8 + 16 + 4L * postings[t].length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return number of indexed documents
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * @return name of document doc
+	 */
+	public String getName(int doc) {
+		return names[doc];
+	}
+
+	/**
+	 * @return position of token in the vocabulary, or (-(insertion point) - 1)
+	 *         as returned by Arrays.binarySearch()
+	 */
+	private int find(String token) {
+		return Arrays.binarySearch(vocabulary, token);
+	}
+
+	/**
+	 * @return first position in the vocabulary whose token is not smaller
+	 *         than the given one
+	 */
+	private int lowerBound(String token) {
+		int idx = find(token);
+		return idx < 0 ? -idx - 1 : idx;
+	}
+
+	/**
+	 * @return the range [from, to) of vocabulary positions starting with prefix
+	 */
+	public int[] prefixRange(String prefix) {
+		int from = lowerBound(prefix);
+		int to = lowerBound(prefix + Character.MAX_VALUE);
+		return new int[] {from, to};
+	}
+
+	public String getToken(int t) {
+		return vocabulary[t];
+	}
+
+	public int[] getPostings(int t) {
+		return postings[t];
+	}
+
+	/**
+	 * @return ids of the documents containing token, empty if there are none
+	 */
+	public int[] getPostings(String token) {
+		int t = find(token);
+		return t < 0 ? new int[0] : postings[t];
+	}
+
+	/**
+	 * Searches the index. Only the postings of the query tokens are
+	 * visited: their scores are summed in a hash map sized for those
+	 * postings, and the best ones are selected with a heap bounded by
+	 * limit, so a query does not depend on the number of documents.
+	 * @param query free text query
+	 * @param limit maximum number of results
+	 * @return document ids of the best matches, best first
+	 */
+	public int[] search(String query, int limit) {
+		if (query == null || limit <= 0) {
+			return new int[0];
+		}
+
+		List<String> tokens = tokenizeQuery(query);
+		if (tokens.isEmpty()) {
+			return new int[0];
+		}
+
+		/** the last token might not be typed completely */
+		String last = tokens.get(tokens.size() - 1);
+		int[] range = last.length() >= MIN_PREFIX_LENGTH ? prefixRange(last) : new int[] {0, 0};
+
+		/** the matched vocabulary positions and their weights */
+		int[] terms = new int[tokens.size() + range[1] - range[0]];
+		float[] weights = new float[terms.length];
+		int termCount = 0;
+		for (String token: tokens) {
+			int t = find(token);
+			if (t >= 0) {
+				terms[termCount] = t;
+				weights[termCount++] = isCode[t] ? CODE_WEIGHT : 1.0f;
+			}
+		}
+		int lastT = find(last);
+		for (int p = range[0]; p < range[1]; p++) {
+			if (p != lastT) {
+				terms[termCount] = p;
+				weights[termCount++] = PREFIX_WEIGHT;
+			}
+		}
+
+		int postingCount = 0;
+		for (int i = 0; i < termCount; i++) {
+			postingCount += postings[terms[i]].length;
+		}
+
+		Scores scores = new Scores(Math.min(postingCount, names.length));
+		for (int i = 0; i < termCount; i++) {
+			float score = weights[i] * idf[terms[i]];
+			for (int doc: postings[terms[i]]) {
+				scores.add(doc, score);
+			}
+		}
+
+		return topK(scores, limit);
+	}
+
+	/**
+	 * Sums the scores of the documents matched by a query, an open
+	 * addressing hash map from document id to score which is kept at most
+	 * half full. The occupied slots are remembered in the order they were
+	 * filled, so the matches can be listed without scanning the table.
+	 */
+	private static final class Scores {
+		private static final int EMPTY = -1;
+
+		private final int[] docs;
+		private final float[] values;
+		private final int[] occupied;
+		private int size = 0;
+
+		/**
+		 * @param maxDocs upper bound for the number of documents added
+		 */
+		Scores(int maxDocs) {
+			int capacity = Integer.highestOneBit(Math.max(1, maxDocs)) * 4;
+			docs = new int[capacity];
+			Arrays.fill(docs, EMPTY);
+			values = new float[capacity];
+			occupied = new int[Math.max(1, maxDocs)];
+		}
+
+		void add(int doc, float score) {
+			int mask = docs.length - 1;
+			int slot = (doc * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(docs.length));
+			while (docs[slot] != doc) {
+				if (docs[slot] == EMPTY) {
+					docs[slot] = doc;
+					occupied[size++] = slot;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			values[slot] += score;
+		}
+	}
+
+	/**
+	 * Selects the best scored documents with a binary heap of at most limit
+	 * slots whose root is the worst of them. Ties are broken in favour of
+	 * shorter, i.e. more general, descriptions and then by MSC code.
+	 */
+	private int[] topK(Scores scores, int limit) {
+		int[] heap = new int[Math.min(limit, scores.size)];
+		int heapSize = 0;
+		for (int i = 0; i < scores.size; i++) {
+			int slot = scores.occupied[i];
+			if (heapSize < heap.length) {
+				heap[heapSize] = slot;
+				siftUp(scores, heap, heapSize++);
+			} else if (isWorse(scores, heap[0], slot)) {
+				heap[0] = slot;
+				siftDown(scores, heap, heapSize);
+			}
+		}
+
+		int[] result = new int[heapSize];
+		for (int i = result.length - 1; i >= 0; i--) {
+			result[i] = scores.docs[heap[0]];
+			heap[0] = heap[--heapSize];
+			siftDown(scores, heap, heapSize);
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the document in slot a ranks below the one in slot b
+	 */
+	private boolean isWorse(Scores scores, int a, int b) {
+		if (scores.values[a] != scores.values[b]) {
+			return scores.values[a] < scores.values[b];
+		}
+		int docA = scores.docs[a];
+		int docB = scores.docs[b];
+		if (lengths[docA] != lengths[docB]) {
+			return lengths[docA] > lengths[docB];
+		}
+		return docA > docB;
+	}
+
+	private void siftUp(Scores scores, int[] heap, int i) {
+		while (i > 0 && isWorse(scores, heap[i], heap[(i - 1) / 2])) {
+			swap(heap, i, (i - 1) / 2);
+			i = (i - 1) / 2;
+		}
+	}
+
+	private void siftDown(Scores scores, int[] heap, int size) {
+		int i = 0;
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && isWorse(scores, heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!isWorse(scores, heap[child], heap[i])) {
+				return;
+			}
+			swap(heap, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(int[] heap, int i, int j) {
+		int tmp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = tmp;
+	}
+}
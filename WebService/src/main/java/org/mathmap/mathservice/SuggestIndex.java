@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.util.*;
+
+/**
+ * Prefix index for type-ahead suggestions. It stores one key per MSC code
+ * (e.g. 35q30 for MSC35Q30) and per description word in a sorted array with
+ * the document of the SearchIndex aligned to it. All keys starting with a
+ * prefix therefore form a contiguous range which is found by two binary
+ * searches.
+ *
+ * There is one such array per level, which are searched top level first, so
+ * general classes are suggested before specific ones. Within a level the
+ * documents are ordered by the completed key and then by code, so the scan
+ * of a range stops as soon as enough documents are found.
+ * If the query consists of several words, only the last one is completed
+ * and the others have to occur in the description.
+ */
+public class SuggestIndex {
+	private final SearchIndex searchIndex;
+	private static final int LEVELS = 3;
+
+	/** keys[level] sorted, docs[level] the document of each key */
+	private final String[][] keys = new String[LEVELS][];
+	private final int[][] docs = new int[LEVELS][];
+
+	/**
+	 * Builds the prefix index for the documents of a search index.
+	 */
+	public SuggestIndex(SearchIndex searchIndex, Map<String, String> name2desc) {
+		this.searchIndex = searchIndex;
+
+		List<List<String>> entryKeys = new ArrayList<List<String>>();
+		List<List<Integer>> entryDocs = new ArrayList<List<Integer>>();
+		for (int level = 0; level < LEVELS; level++) {
+			entryKeys.add(new ArrayList<String>());
+			entryDocs.add(new ArrayList<Integer>());
+		}
+		for (int doc = 0; doc < searchIndex.size(); doc++) {
+			String name = searchIndex.getName(doc);
+			int level = getLevel(name);
+
+			Set<String> docKeys = new LinkedHashSet<String>();
+			docKeys.add(normalize(name.substring(3)));
+			docKeys.addAll(SearchIndex.tokenize(name2desc.get(name)));
+			for (String key: docKeys) {
+				entryKeys.get(level).add(key);
+				entryDocs.get(level).add(doc);
+			}
+		}
+
+		for (int level = 0; level < LEVELS; level++) {
+			final List<String> levelKeys = entryKeys.get(level);
+			final List<Integer> levelDocs = entryDocs.get(level);
+			Integer[] order = new Integer[levelKeys.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int cmp = levelKeys.get(a).compareTo(levelKeys.get(b));
+					if (cmp != 0) {
+						return cmp;
+					}
+					return levelDocs.get(a) - levelDocs.get(b);
+				}
+			});
+
+			keys[level] = new String[order.length];
+			docs[level] = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				keys[level][i] = levelKeys.get(order[i]);
+				docs[level][i] = levelDocs.get(order[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return rough size of the index on the heap in bytes
+	 */
+	public long estimateBytes() {
+		long bytes = 0;
+		for (int level = 0; level < LEVELS; level++) {
+			bytes += 4L * docs[level].length;
+			for (String key: keys[level]) {
+				bytes += 8 + Metrics.estimateBytes(key);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return 0 for top level (35-XX), 1 for mid level (35Axx), 2 otherwise
+	 */
+	private static int getLevel(String name) {
+		if (name.endsWith("XX")) {
+			return 0;
+		} else if (name.endsWith("xx")) {
+			return 1;
+		}
+		return 2;
+	}
+
+	private static String normalize(String text) {
+		return text.toLowerCase(Locale.ROOT).replace("-", "");
+	}
+
+	private static int lowerBound(String[] keys, String key) {
+		int idx = Arrays.binarySearch(keys, key);
+		if (idx < 0) {
+			return -idx - 1;
+		}
+		/** binarySearch finds any of several equal keys */
+		while (idx > 0 && keys[idx - 1].equals(key)) {
+			idx--;
+		}
+		return idx;
+	}
+
+	/**
+	 * Completes a prefix.
+	 * @param prefix the text typed so far
+	 * @param limit  maximum number of suggestions
+	 * @return document ids of the SearchIndex, most general first
+	 */
+	public int[] suggest(String prefix, int limit) {
+		if (prefix == null || limit <= 0) {
+			return new int[0];
+		}
+
+		List<String> tokens = new ArrayList<String>();
+		for (String word: prefix.trim().split("\\s+")) {
+			String code = normalize(word);
+			if (code.startsWith("msc")) {
+				code = code.substring(3);
+			}
+			if (!code.isEmpty() && Character.isDigit(code.charAt(0))) {
+				tokens.add(code);
+			} else {
+				tokens.addAll(SearchIndex.tokenize(word));
+			}
+		}
+		if (tokens.isEmpty()) {
+			return new int[0];
+		}
+		String last = tokens.get(tokens.size() - 1);
+
+		/** the preceding words have to occur as complete words */
+		BitSet allowed = null;
+		for (String token: tokens.subList(0, tokens.size() - 1)) {
+			BitSet tokenDocs = new BitSet(searchIndex.size());
+			for (int doc: searchIndex.getPostings(token)) {
+				tokenDocs.set(doc);
+			}
+			if (allowed == null) {
+				allowed = tokenDocs;
+			} else {
+				allowed.and(tokenDocs);
+			}
+		}
+
+		/** collect the documents of the range level by level until there are enough, a document may occur for several keys */
+		int[] result = new int[limit];
+		int count = 0;
+		BitSet seen = new BitSet(searchIndex.size());
+		for (int level = 0; level < LEVELS && count < limit; level++) {
+			int from = lowerBound(keys[level], last);
+			int to = lowerBound(keys[level], last + Character.MAX_VALUE);
+			for (int i = from; i < to && count < limit; i++) {
+				int doc = docs[level][i];
+				if ((allowed != null && !allowed.get(doc)) || seen.get(doc)) {
+					continue;
+				}
+				seen.set(doc);
+				result[count++] = doc;
+			}
+		}
+
+		return count == limit ? result : Arrays.copyOf(result, count);
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2013-19 KWARC Group <kwarc.info>
+ *
+ * This file is part of OpenMathMap.
+ *
+ * OpenMathMap is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenMathMap is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenMathMap. If not, see <http://www.gnu.org/licenses/>.
+ */
+package mathservice;
+
+import java.util.Arrays;
+
+/**
+ * Maps the zoom of the map to the level of the MSC grid answering mscquery,
+ * mscquerybatch and mscregion. It is configured as the minimum zoom of every
+ * level below the top level, e.g. "13,14": zoom up to 12 shows the top level,
+ * 13 the mid level and 14 or more the bottom level (five digit MSCs).
+ * Datasets with fewer levels answer from their finest level.
+ */
+public class ZoomLevels {
+	/** up to zoom 12 top level, 13 mid level, from 14 (the deepest zoom of the frontend) bottom level */
+	public static final ZoomLevels DEFAULT = parse("13,14");
+
+	private final int[] minZooms;
+
+	private ZoomLevels(int[] minZooms) {
+		this.minZooms = minZooms;
+	}
+
+	/**
+	 * @param spec comma separated minimum zoom per level below the top level, ascending
+	 * @throws IllegalArgumentException if spec is malformed
+	 */
+	public static ZoomLevels parse(String spec) {
+		String[] tokens = spec.trim().isEmpty() ? new String[0] : spec.split(",");
+		int[] minZooms = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			try {
+				minZooms[i] = Integer.parseInt(tokens[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Malformed zoom levels " + spec, e);
+			}
+			if (i > 0 && minZooms[i] <= minZooms[i - 1]) {
+				throw new IllegalArgumentException("Zoom levels have to be ascending: " + spec);
+			}
+		}
+		return new ZoomLevels(minZooms);
+	}
+
+	/**
+	 * @return the level of the map that is shown at zoom
+	 */
+	public int getLevel(int zoom) {
+		int level = 0;
+		while (level < minZooms.length && zoom >= minZooms[level]) {
+			level++;
+		}
+		return level;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(minZooms);
+	}
+}